@@ -19,6 +19,8 @@ package bots;
 
 import messages.BotDocumentMessage;
 import messages.BotTextMessage;
+import messages.ImageVariant;
+import org.javatuples.Triplet;
 
 import java.util.List;
 import java.util.Map;
@@ -27,7 +29,35 @@ import java.util.Optional;
 public interface Bot extends AutoCloseable {
     boolean init(String botId, Map<String, String> configs, String[] channels);
 
-    void addBridge(Bot bot, String channelTo, String channelFrom);
+    /**
+     * Replaces every bridge at once.
+     *
+     * @param bridges a list of {@literal Triplet<Bot bot, String channelTo, String channelFrom>}
+     */
+    void setBridges(List<Triplet<Bot, String, String>> bridges);
+
+    /**
+     * Joins and leaves channels without reconnecting.
+     *
+     * @return false if the bot has to be restarted to serve the new channels
+     */
+    default boolean updateChannels(String[] channels) {
+        return false;
+    }
+
+    /**
+     * @return the version of the bridged images sent by this bot
+     */
+    default ImageVariant getImageVariant() {
+        return ImageVariant.ORIGINAL;
+    }
+
+    /**
+     * @return milliseconds the edits sent to this bot are held, so only the last of close edits is sent
+     */
+    default int getEditDelay() {
+        return 0;
+    }
 
     Optional<String> sendMessage(BotTextMessage msg, String channelTo);
 
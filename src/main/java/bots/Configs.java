@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import messages.ImageVariant;
+
+import java.util.Locale;
+import java.util.Map;
+
+final class Configs {
+    private static final String IMAGES_KEY = "images";
+    private static final String EDIT_DELAY_KEY = "edit-delay-ms";
+
+    private Configs() {
+    }
+
+    // SnakeYAML may return numbers even though configs are declared as strings
+    private static Object get(Map<String, String> configs, String key) {
+        final Map<String, ?> values = configs;
+        return values.get(key);
+    }
+
+    static int getInt(Map<String, String> configs, String key, int defaultValue) {
+        final Object value = Configs.get(configs, key);
+        if (null == value)
+            return defaultValue;
+
+        try {
+            return Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            System.err.println(String.format("'%s' is not a valid value for '%s', using %d.", value, key, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    static ImageVariant getImageVariant(Map<String, String> configs) {
+        final Object value = Configs.get(configs, IMAGES_KEY);
+        if (null == value)
+            return ImageVariant.ORIGINAL;
+
+        try {
+            return ImageVariant.valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println(String.format("'%s' is not a valid value for '%s', using original images.",
+                    value, IMAGES_KEY));
+            return ImageVariant.ORIGINAL;
+        }
+    }
+
+    static int getEditDelay(Map<String, String> configs, int defaultValue) {
+        return Configs.getInt(configs, EDIT_DELAY_KEY, defaultValue);
+    }
+
+    static double getDouble(Map<String, String> configs, String key, double defaultValue) {
+        final Object value = Configs.get(configs, key);
+        if (null == value)
+            return defaultValue;
+
+        try {
+            return Double.parseDouble(value.toString().trim());
+        } catch (NumberFormatException e) {
+            System.err.println(String.format("'%s' is not a valid value for '%s', using %s.", value, key, defaultValue));
+            return defaultValue;
+        }
+    }
+}
@@ -18,26 +18,33 @@
 package bots;
 
 import core.BotsController;
+import core.MessageTemplate;
 import messages.BotDocumentMessage;
 import messages.BotMessage;
 import messages.BotTextMessage;
+import messages.ImageVariant;
 import models.FileStorage;
 import net.engio.mbassy.listener.Handler;
 import net.engio.mbassy.listener.Invoke;
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
 import org.javatuples.Triplet;
 import org.kitteh.irc.client.library.Client;
 import org.kitteh.irc.client.library.element.Actor;
+import org.kitteh.irc.client.library.element.CapabilityState;
 import org.kitteh.irc.client.library.element.Channel;
 import org.kitteh.irc.client.library.element.User;
+import org.kitteh.irc.client.library.event.capabilities.CapabilitiesSupportedListEvent;
 import org.kitteh.irc.client.library.event.channel.ChannelMessageEvent;
 import org.kitteh.irc.client.library.event.helper.ChannelUserListChangeEvent;
+import org.kitteh.irc.client.library.event.user.UserQuitEvent;
 import org.kitteh.irc.client.library.feature.AuthManager;
 import org.kitteh.irc.client.library.feature.auth.SaslPlain;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -45,16 +52,40 @@ public final class IrcBot implements Bot {
     private static final String USERNAME_KEY = "username";
     private static final String HOST_KEY = "host";
     private static final String PASSWORD_KEY = "password";
+    private static final String FLOOD_BURST_KEY = "flood-burst";
+    private static final String FLOOD_RATE_KEY = "flood-messages-per-second";
+    private static final int DEFAULT_FLOOD_BURST = 4;
+    private static final double DEFAULT_FLOOD_RATE = 0.5;
+    private static final String MEMBERSHIP_WINDOW_KEY = "membership-window-seconds";
+    private static final int DEFAULT_MEMBERSHIP_WINDOW = 5;
+    private static final String MEMBERSHIP_SUMMARY_KEY = "membership-summary-threshold";
+    private static final int DEFAULT_MEMBERSHIP_SUMMARY = 3;
+    private static final String NETJOIN_KEY = "netjoin-minutes";
+    private static final int DEFAULT_NETJOIN = 15;
+    // Users listed by name in a summary
+    private static final int MAX_LISTED_USERS = 10;
+    // Servers quit with "<hub> <leaf>" as message when they split from the network
+    private static final Pattern NETSPLIT = Pattern.compile("[\\w.-]+\\.[\\w-]+ [\\w.-]+\\.[\\w-]+");
     private static final Pattern COMPILE = Pattern.compile("[\r\n]");
     private static final Pattern PATTERN = Pattern.compile("\\s+");
+    // Every edit is a new line on IRC
+    private static final int DEFAULT_EDIT_DELAY = 5000;
     private final Collection<String> blacklist = new LinkedHashSet<>();
     private final BotsController botsController = new BotsController();
     private final ResourceBundle resourceBundle = ResourceBundle.getBundle("resources");
     private Client client;
+    private IrcOutputScheduler output;
+    private IrcMembershipBatcher membership;
+    private int membershipSummaryThreshold = DEFAULT_MEMBERSHIP_SUMMARY;
+    private Set<String> channels = new HashSet<>();
     private String botId;
+    private ImageVariant imageVariant = ImageVariant.ORIGINAL;
+    private int editDelay = DEFAULT_EDIT_DELAY;
 
     @Override
     public boolean init(String botId, Map<String, String> configs, String[] channels) {
+        this.imageVariant = Configs.getImageVariant(configs);
+        this.editDelay = Configs.getEditDelay(configs, DEFAULT_EDIT_DELAY);
         if (!configs.containsKey(USERNAME_KEY))
             return false;
         if (!configs.containsKey(HOST_KEY))
@@ -68,11 +99,22 @@ public final class IrcBot implements Bot {
                     client.getIntendedNick(), configs.get(PASSWORD_KEY)));
         }
 
+        output = new IrcOutputScheduler(client, botId,
+                Configs.getInt(configs, FLOOD_BURST_KEY, DEFAULT_FLOOD_BURST),
+                Configs.getDouble(configs, FLOOD_RATE_KEY, DEFAULT_FLOOD_RATE));
+
+        membership = new IrcMembershipBatcher(botId,
+                TimeUnit.SECONDS.toMillis(Configs.getInt(configs, MEMBERSHIP_WINDOW_KEY, DEFAULT_MEMBERSHIP_WINDOW)),
+                TimeUnit.MINUTES.toMillis(Configs.getInt(configs, NETJOIN_KEY, DEFAULT_NETJOIN)),
+                this::onMembershipChanges);
+        membershipSummaryThreshold = Configs.getInt(configs, MEMBERSHIP_SUMMARY_KEY, DEFAULT_MEMBERSHIP_SUMMARY);
+
         client.getEventManager().registerEventListener(this);
 
         for (String channel : channels) {
             try {
                 client.addChannel(channel);
+                this.channels.add(channel);
             } catch (IllegalArgumentException e) {
                 System.err.println(String.format("Invalid channel name '%s' on '%s'.", channel, configs.get(HOST_KEY)));
                 e.printStackTrace();
@@ -85,23 +127,35 @@ public final class IrcBot implements Bot {
     }
 
     @Override
-    public void addBridge(Bot bot, String channelTo, String channelFrom) {
-        botsController.addBridge(bot, channelTo, channelFrom);
+    public void setBridges(List<Triplet<Bot, String, String>> bridges) {
+        botsController.setBridges(bridges);
+    }
+
+    /**
+     * Sends the text laid out by the template of the channel, around it.
+     */
+    private void send(BotMessage msg, String channelTo, String text) {
+        final Pair<String, String> around = MessageTemplate.forChannel(this.botId, channelTo).formatAround(msg);
+        output.send(channelTo, around.getValue0(), around.getValue1(), text);
     }
 
     @Override
     public Optional<String> sendMessage(BotTextMessage msg, String channelTo) {
-        String[] messagesWithoutNewline = COMPILE.split(msg.getText()); // IRC doesn't allow CR / LF
-        for (String messageToken : messagesWithoutNewline) {
-            client.sendMessage(channelTo, BotsController.messageFormatter(
-                    msg.getBotFrom(), msg.getChannelFrom(),
-                    msg.getNicknameFrom(), Optional.ofNullable(messageToken)));
-        }
+        this.send(msg, channelTo, msg.getText());
 
         // There aren't reasons to store IRC messages
         return Optional.empty();
     }
 
+    @Handler
+    public void onCapabilitiesSupported(CapabilitiesSupportedListEvent event) {
+        event.getSupportedCapabilities().stream()
+                .map(CapabilityState::getName)
+                .filter(name -> IrcOutputScheduler.BATCH_CAPABILITY.equals(name) ||
+                        IrcOutputScheduler.MULTILINE_CAPABILITY.equals(name))
+                .forEach(event::addRequest);
+    }
+
     @Handler(delivery = Invoke.Asynchronously)
     private void onMessageReceived(ChannelMessageEvent message) {
         String authorNickname = message.getActor().getNick();
@@ -115,19 +169,21 @@ public final class IrcBot implements Bot {
         if (2 == textSpaceSplitted.length &&
                 textSpaceSplitted[0].equals(client.getNick()) &&
                 "users".equals(textSpaceSplitted[1])) {
-            List<Triplet<Bot, String, List<String>>> users = botsController.askForUsers(channelFrom);
+            List<Quartet<Bot, String, List<String>, Boolean>> users = botsController.askForUsers(channelFrom);
             users.forEach(channel -> {
                 final String channelName = channel.getValue0().getChannelName(channel.getValue1());
                 final StringBuilder output = new StringBuilder();
                 output.append(channel.getValue0().getClass().getSimpleName())
                         .append('/')
-                        .append(channelName)
-                        .append(": ");
+                        .append(channelName);
+                if (channel.getValue3())
+                    output.append(' ').append(resourceBundle.getString("users-stale"));
+                output.append(": ");
 
                 channel.getValue2().forEach(userTo -> output.append(userTo).append(", "));
 
                 output.delete(output.length() - 2, output.length() - 1);
-                client.sendMessage(channelFrom, output.toString());
+                this.output.send(channelFrom, "", "", output.toString());
             });
         } else {
             BotMessage msg = new BotMessage(authorNickname, channelFrom, this);
@@ -150,54 +206,94 @@ public final class IrcBot implements Bot {
             if (blacklist.contains(authorNickname))
                 return;
 
-            String message;
             if (0 == change.compareTo(ChannelUserListChangeEvent.Change.JOIN)) {
                 // An user is in the blacklist until it sends a message
                 this.blacklist.add(authorNickname);
-                message = MessageFormat.format(resourceBundle.getString("channel-joined"), authorNickname);
+                membership.join(channelFromName, authorNickname);
+            } else if (event instanceof UserQuitEvent &&
+                    NETSPLIT.matcher(((UserQuitEvent) event).getMessage()).matches())
+                membership.split(authorNickname);
+            else if (!channelFrom.isPresent()) {
+                // A quit is reported in the channels shared with the user, where it cancels a recent join
+                Set<String> channels = event.getUser().getChannels();
+                if (channels.isEmpty())
+                    membership.quit(BotsController.EVERY_CHANNEL, authorNickname);
+                else
+                    channels.forEach(channel -> membership.quit(channel, authorNickname));
             } else
-                message = MessageFormat.format(resourceBundle.getString(
-                        channelFrom.map(channel -> "channel-left")
-                                .orElse("server-left")),
-                        authorNickname);
+                membership.leave(channelFromName, authorNickname);
+        }
+    }
 
-            BotMessage msg = new BotMessage(authorNickname, channelFromName, this);
-            BotTextMessage textMessage = new BotTextMessage(msg, message);
+    private void onMembershipChanges(String channelFrom, List<String> joined, List<String> left, List<String> quit) {
+        IrcBot.formatMembership(resourceBundle, membershipSummaryThreshold, client.getNick(), joined, left, quit)
+                .forEach(message -> this.sendMembership(message.getValue0(), channelFrom, message.getValue1()));
+    }
 
-            // A new, useless msgId is passed. There aren't reasons to store IRC messages
-            botsController.sendMessage(textMessage, channelFromName, Optional.empty());
+    /**
+     * Describes the users who joined or left a channel, in a single message if they are many.
+     *
+     * @param summaryNickname the author of the single message
+     * @return a list of {@literal Pair<String nickname, String text>}
+     */
+    static List<Pair<String, String>> formatMembership(ResourceBundle resourceBundle, int summaryThreshold,
+                                                       String summaryNickname, List<String> joined,
+                                                       List<String> left, List<String> quit) {
+        if (joined.size() + left.size() + quit.size() <= summaryThreshold) {
+            final List<Pair<String, String>> messages = new ArrayList<>();
+            joined.forEach(nickname -> messages.add(Pair.with(nickname,
+                    MessageFormat.format(resourceBundle.getString("channel-joined"), nickname))));
+            left.forEach(nickname -> messages.add(Pair.with(nickname,
+                    MessageFormat.format(resourceBundle.getString("channel-left"), nickname))));
+            quit.forEach(nickname -> messages.add(Pair.with(nickname,
+                    MessageFormat.format(resourceBundle.getString("server-left"), nickname))));
+            return messages;
         }
+
+        final StringJoiner summary = new StringJoiner(" ");
+        if (!joined.isEmpty())
+            summary.add(MessageFormat.format(resourceBundle.getString("channel-joined"),
+                    IrcBot.listUsers(resourceBundle, joined)));
+        if (!left.isEmpty())
+            summary.add(MessageFormat.format(resourceBundle.getString("channel-left"),
+                    IrcBot.listUsers(resourceBundle, left)));
+        if (!quit.isEmpty())
+            summary.add(MessageFormat.format(resourceBundle.getString("server-left"),
+                    IrcBot.listUsers(resourceBundle, quit)));
+        return Collections.singletonList(Pair.with(summaryNickname, summary.toString()));
+    }
+
+    private static String listUsers(ResourceBundle resourceBundle, List<String> nicknames) {
+        final String listed = String.join(", ", nicknames.subList(0, Math.min(MAX_LISTED_USERS, nicknames.size())));
+        if (nicknames.size() <= MAX_LISTED_USERS)
+            return listed;
+
+        return MessageFormat.format(resourceBundle.getString("users-others"), listed,
+                nicknames.size() - MAX_LISTED_USERS);
+    }
+
+    private void sendMembership(String nickname, String channelFrom, String text) {
+        BotMessage msg = new BotMessage(nickname, channelFrom, this);
+        BotTextMessage textMessage = new BotTextMessage(msg, text);
+
+        // A new, useless msgId is passed. There aren't reasons to store IRC messages
+        botsController.sendMessage(textMessage, channelFrom, Optional.empty());
     }
 
     @Override
     public Optional<String> sendMessage(BotDocumentMessage msg, String channelTo) {
         try {
-            String fileUrl = FileStorage.storeFile(msg.getDoc(), msg.getFileExtension());
+            String fileUrl = FileStorage.storeFile(msg);
             if (msg.getText() != null) {
                 String[] text = COMPILE.split(msg.getText());
 
-                if (text.length == 1) {
-                    this.client.sendMessage(channelTo, BotsController.messageFormatter(
-                            msg.getBotFrom(), msg.getChannelFrom(), msg.getNicknameFrom(),
-                            Optional.of(fileUrl + ' ' + text[0])));
-                } else {
-                    this.client.sendMessage(channelTo, BotsController.messageFormatter(
-                            msg.getBotFrom(),
-                            msg.getChannelFrom(),
-                            msg.getNicknameFrom(),
-                            Optional.ofNullable(fileUrl)));
-                    for (String messageToken : text) {
-                        client.sendMessage(channelTo, BotsController.messageFormatter(
-                                msg.getBotFrom(), msg.getChannelFrom(),
-                                msg.getNicknameFrom(), Optional.ofNullable(messageToken)));
-                    }
-                }
-            } else {
-                this.client.sendMessage(channelTo, BotsController.messageFormatter(
-                        msg.getBotFrom(), msg.getChannelFrom(),
-                        msg.getNicknameFrom(), Optional.ofNullable(fileUrl)));
-            }
-        } catch (URISyntaxException | IOException e) {
+                if (text.length == 1)
+                    this.send(msg, channelTo, fileUrl + ' ' + text[0]);
+                else
+                    this.send(msg, channelTo, fileUrl + '\n' + msg.getText());
+            } else
+                this.send(msg, channelTo, fileUrl);
+        } catch (IOException e) {
             System.err.println("Error while storing the doc");
             e.printStackTrace();
         }
@@ -208,12 +304,7 @@ public final class IrcBot implements Bot {
 
     @Override
     public void editMessage(BotTextMessage msg, String channelTo, String messageId) {
-        String[] messagesWithoutNewline = COMPILE.split(msg.getText()); // IRC doesn't allow CR / LF
-        for (String messageToken : messagesWithoutNewline) {
-            client.sendMessage(channelTo, BotsController.messageFormatter(
-                    msg.getBotFrom(), msg.getChannelFrom(), msg.getNicknameFrom(),
-                    Optional.of(MessageFormat.format(resourceBundle.getString("message-edited"), messageToken))));
-        }
+        this.send(msg, channelTo, MessageFormat.format(resourceBundle.getString("message-edited"), msg.getText()));
     }
 
     @Override
@@ -230,13 +321,47 @@ public final class IrcBot implements Bot {
         return new ArrayList<>(0);
     }
 
+    @Override
+    public ImageVariant getImageVariant() {
+        return this.imageVariant;
+    }
+
+    @Override
+    public int getEditDelay() {
+        return this.editDelay;
+    }
+
     @Override
     public String getId() {
         return botId;
     }
 
+    @Override
+    public synchronized boolean updateChannels(String[] channels) {
+        final Set<String> newChannels = new HashSet<>();
+        for (String channel : channels) {
+            try {
+                if (!this.channels.contains(channel))
+                    client.addChannel(channel);
+                newChannels.add(channel);
+            } catch (IllegalArgumentException e) {
+                System.err.println(String.format("Invalid channel name '%s'.", channel));
+                e.printStackTrace();
+            }
+        }
+
+        this.channels.stream()
+                .filter(channel -> !newChannels.contains(channel))
+                .forEach(client::removeChannel);
+        this.channels = newChannels;
+
+        return true;
+    }
+
     @Override
     public void close() throws Exception {
+        membership.close();
+        output.close();
         client.shutdown();
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the joins and the leaves of a channel for a short window, so a storm of them
+ * becomes a single message. Quits are collected in each channel the user was in.
+ * A user who joins and leaves or quits within the same window isn't reported at all, nor are
+ * the users who quit because of a netsplit when they join again.
+ */
+final class IrcMembershipBatcher implements AutoCloseable {
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    // Channel -> nickname -> last change
+    private final Map<String, Map<String, Change>> batches = new HashMap<>();
+    // Nickname -> when it quit because of a netsplit
+    private final Map<String, Long> splitUsers = new HashMap<>();
+    private final long windowMillis;
+    private final long netjoinMillis;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param windowMillis  the changes of a channel are reported this long after the first one
+     * @param netjoinMillis the users split from the network are expected to join again within this time
+     */
+    IrcMembershipBatcher(String name, long windowMillis, long netjoinMillis, Listener listener) {
+        this.windowMillis = windowMillis;
+        this.netjoinMillis = netjoinMillis;
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-membership");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    synchronized void join(String channel, String nickname) {
+        final Long splitTime = this.splitUsers.get(nickname);
+        if (null != splitTime && System.currentTimeMillis() - splitTime < this.netjoinMillis)
+            return;
+
+        this.add(channel, nickname, Change.JOINED);
+    }
+
+    synchronized void leave(String channel, String nickname) {
+        this.add(channel, nickname, Change.LEFT);
+    }
+
+    /**
+     * Records a user who quit the network, once for each channel it was in.
+     */
+    synchronized void quit(String channel, String nickname) {
+        this.add(channel, nickname, Change.QUIT);
+    }
+
+    /**
+     * Records a user who quit because of a netsplit, who isn't reported.
+     */
+    synchronized void split(String nickname) {
+        this.splitUsers.put(nickname, System.currentTimeMillis());
+    }
+
+    private void add(String channel, String nickname, Change change) {
+        Map<String, Change> batch = this.batches.get(channel);
+        if (null == batch) {
+            batch = new LinkedHashMap<>();
+            this.batches.put(channel, batch);
+            try {
+                this.executor.schedule(() -> this.flush(channel), this.windowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed
+                this.batches.remove(channel);
+                return;
+            }
+        }
+
+        // Opposite changes of the same user cancel each other
+        final Change previous = batch.remove(nickname);
+        if (null == previous || (Change.JOINED == previous) == (Change.JOINED == change))
+            batch.put(nickname, change);
+    }
+
+    private void flush(String channel) {
+        final Map<String, Change> batch;
+        synchronized (this) {
+            batch = this.batches.remove(channel);
+
+            final long now = System.currentTimeMillis();
+            this.splitUsers.values().removeIf(splitTime -> now - splitTime >= this.netjoinMillis);
+        }
+        if (null == batch || batch.isEmpty())
+            return;
+
+        final Map<Change, List<String>> changes = new EnumMap<>(Change.class);
+        for (Change change : Change.values())
+            changes.put(change, new ArrayList<>());
+        batch.forEach((nickname, change) -> changes.get(change).add(nickname));
+
+        try {
+            this.listener.onChanges(channel, changes.get(Change.JOINED), changes.get(Change.LEFT),
+                    changes.get(Change.QUIT));
+        } catch (RuntimeException e) {
+            System.err.println(String.format("Error while reporting the users of '%s'.", channel));
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private enum Change {
+        JOINED, LEFT, QUIT
+    }
+
+    interface Listener {
+        void onChanges(String channel, List<String> joined, List<String> left, List<String> quit);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import org.kitteh.irc.client.library.Client;
+import org.kitteh.irc.client.library.element.CapabilityState;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Sends the output of an IRC connection.
+ * Short lines of a block are packed together, long ones are split without breaking UTF-8 sequences
+ * and every line is paced against the flood budget of the server.
+ * When the server supports draft/multiline the whole block is sent as a single batch, paced as one line.
+ */
+final class IrcOutputScheduler implements AutoCloseable {
+    static final String MULTILINE_CAPABILITY = "draft/multiline";
+    static final String BATCH_CAPABILITY = "batch";
+    // Joins a line to the one before it, without a line break
+    private static final String MULTILINE_CONCAT_TAG = "draft/multiline-concat";
+    private static final Pattern NEWLINE = Pattern.compile("[\r\n]+"); // IRC doesn't allow CR / LF
+    private static final Pattern MULTILINE_VALUE_SEPARATOR = Pattern.compile(",");
+    private static final String LINE_SEPARATOR = " | ";
+    private static final int PROTOCOL_MAX_BYTES = 512;
+    // ":nick!user@host " is prepended by the server when relaying the line: USERLEN 10, HOSTLEN 63
+    private static final int SOURCE_RESERVED_BYTES = 1 + 1 + 10 + 1 + 63 + 1;
+    private static final int DEFAULT_MULTILINE_MAX_BYTES = 4096;
+    private static final int DEFAULT_MULTILINE_MAX_LINES = 24;
+    // "@batch=<id>;draft/multiline-concat " prepended to the lines of a batch
+    private static final int BATCH_TAG_RESERVED_BYTES = 48;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private final Connection connection;
+    private final TokenBucket floodBudget;
+    private final ExecutorService executor;
+    private final AtomicLong batchCounter = new AtomicLong();
+
+    IrcOutputScheduler(Client client, String name, int floodBurst, double linesPerSecond) {
+        this(IrcOutputScheduler.connect(client), name, new TokenBucket(floodBurst, linesPerSecond));
+    }
+
+    IrcOutputScheduler(Connection connection, String name, TokenBucket floodBudget) {
+        this.connection = connection;
+        this.floodBudget = floodBudget;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "irc-output-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Connection connect(Client client) {
+        return new Connection() {
+            @Override
+            public String getNick() {
+                return client.getNick();
+            }
+
+            @Override
+            public Optional<String> getMultiline() {
+                final List<CapabilityState> capabilities = client.getCapabilityManager().getCapabilities();
+                final boolean batch = capabilities.stream()
+                        .anyMatch(capability -> BATCH_CAPABILITY.equals(capability.getName()));
+
+                return batch ? capabilities.stream()
+                        .filter(capability -> MULTILINE_CAPABILITY.equals(capability.getName()))
+                        .findFirst()
+                        .map(capability -> capability.getValue().orElse("")) : Optional.empty();
+            }
+
+            @Override
+            public void sendMessage(String target, String message) {
+                client.sendMessage(target, message);
+            }
+
+            @Override
+            public void sendRawLine(String line) {
+                client.sendRawLine(line);
+            }
+        };
+    }
+
+    private static int utf8Length(int codePoint) {
+        if (codePoint < 0x80)
+            return 1;
+        if (codePoint < 0x800)
+            return 2;
+        if (codePoint < 0x10000)
+            return 3;
+        return 4;
+    }
+
+    private static int utf8Length(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Splits a line in chunks of at most maxBytes UTF-8 bytes, preferring whitespace as cut point.
+     * The whitespace a line is cut at is dropped.
+     */
+    static List<String> splitUtf8(String line, int maxBytes) {
+        return splitUtf8(line, maxBytes, false);
+    }
+
+    /**
+     * @param keepWhitespace true to keep the whitespace a line is cut at, at the end of the chunk before it,
+     *                       so the chunks can be concatenated back
+     */
+    static List<String> splitUtf8(String line, int maxBytes, boolean keepWhitespace) {
+        final List<String> chunks = new ArrayList<>(1);
+        int start = 0;
+        int bytes = 0;
+        int lastSpace = -1;
+        int offset = 0;
+        while (offset < line.length()) {
+            final int codePoint = line.codePointAt(offset);
+            final int length = utf8Length(codePoint);
+
+            if (bytes + length > maxBytes && offset > start) {
+                final int end;
+                if (lastSpace > start)
+                    end = keepWhitespace ? lastSpace + 1 : lastSpace;
+                else
+                    end = offset;
+                chunks.add(line.substring(start, end));
+                start = end == lastSpace ? end + 1 : end;
+                bytes = utf8Length(line.substring(start, offset));
+                lastSpace = -1;
+                continue;
+            }
+
+            if (Character.isWhitespace(codePoint))
+                lastSpace = offset;
+            bytes += length;
+            offset += Character.charCount(codePoint);
+        }
+
+        if (start < line.length())
+            chunks.add(line.substring(start));
+
+        return chunks;
+    }
+
+    /**
+     * Packs consecutive lines together, as long as they fit in maxBytes.
+     */
+    static List<String> pack(Iterable<String> lines, int maxBytes) {
+        final int separatorLength = utf8Length(LINE_SEPARATOR);
+        final List<String> packed = new ArrayList<>();
+        final StringBuilder current = new StringBuilder();
+        int currentLength = 0;
+        for (String line : lines) {
+            for (String chunk : splitUtf8(line, maxBytes)) {
+                final int chunkLength = utf8Length(chunk);
+                if (0 < current.length() && currentLength + separatorLength + chunkLength > maxBytes) {
+                    packed.add(current.toString());
+                    current.setLength(0);
+                    currentLength = 0;
+                }
+
+                if (0 < current.length()) {
+                    current.append(LINE_SEPARATOR);
+                    currentLength += separatorLength;
+                }
+                current.append(chunk);
+                currentLength += chunkLength;
+            }
+        }
+
+        if (0 < current.length())
+            packed.add(current.toString());
+
+        return packed;
+    }
+
+    private static List<String> splitLines(String text) {
+        final List<String> lines = new ArrayList<>();
+        for (String line : NEWLINE.split(text)) {
+            if (!line.trim().isEmpty())
+                lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * Queues a block of text, framed by prefix and suffix: each line of the block when it is packed,
+     * the whole block when it is sent as a batch.
+     */
+    void send(String target, String prefix, String suffix, String text) {
+        final List<String> lines = splitLines(text);
+        if (lines.isEmpty())
+            lines.add("");
+
+        this.executor.execute(() -> {
+            try {
+                final Optional<String> multiline = this.connection.getMultiline();
+                if (1 < lines.size() && multiline.isPresent())
+                    this.sendBatch(target, prefix, suffix, lines, multiline.get());
+                else
+                    this.sendPacked(target, prefix, suffix, lines);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                System.err.println(String.format("Failed to send message to %s.", target));
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private int getMaxPayloadBytes(String target) {
+        return PROTOCOL_MAX_BYTES - "\r\n".length()
+                - utf8Length("PRIVMSG " + target + " :")
+                - SOURCE_RESERVED_BYTES - utf8Length(this.connection.getNick());
+    }
+
+    private void sendPacked(String target, String prefix, String suffix,
+                            List<String> lines) throws InterruptedException {
+        final int maxBytes = this.getMaxPayloadBytes(target) - utf8Length(prefix) - utf8Length(suffix);
+        for (String line : pack(lines, maxBytes)) {
+            this.floodBudget.acquire();
+            this.connection.sendMessage(target, prefix + line + suffix);
+        }
+    }
+
+    private void sendBatch(String target, String prefix, String suffix, List<String> lines,
+                           String multiline) throws InterruptedException {
+        int maxBatchBytes = DEFAULT_MULTILINE_MAX_BYTES;
+        int maxBatchLines = DEFAULT_MULTILINE_MAX_LINES;
+        for (String parameter : MULTILINE_VALUE_SEPARATOR.split(multiline)) {
+            try {
+                if (parameter.startsWith("max-bytes="))
+                    maxBatchBytes = Integer.parseInt(parameter.substring("max-bytes=".length()));
+                else if (parameter.startsWith("max-lines="))
+                    maxBatchLines = Math.min(maxBatchLines, Integer.parseInt(parameter.substring("max-lines=".length())));
+            } catch (NumberFormatException e) {
+                System.err.println(String.format("Invalid %s value '%s'.", MULTILINE_CAPABILITY, parameter));
+            }
+        }
+
+        final int maxLineBytes = this.getMaxPayloadBytes(target) - BATCH_TAG_RESERVED_BYTES;
+        final List<String> chunks = new ArrayList<>(lines.size());
+        // True for the chunks which continue the line before them
+        final List<Boolean> continuations = new ArrayList<>(lines.size());
+        for (int n = 0; n < lines.size(); n++) {
+            final String line = (0 == n ? prefix : "") + lines.get(n) + (lines.size() - 1 == n ? suffix : "");
+            final List<String> lineChunks = splitUtf8(line, maxLineBytes, true);
+            for (int chunk = 0; chunk < lineChunks.size(); chunk++) {
+                chunks.add(lineChunks.get(chunk));
+                continuations.add(0 < chunk);
+            }
+        }
+
+        // A batch is delivered as a single message, it counts as one against the flood budget
+        int next = 0;
+        while (next < chunks.size()) {
+            final String batchId = Long.toString(this.batchCounter.incrementAndGet(), Character.MAX_RADIX);
+
+            this.floodBudget.acquire();
+            this.connection.sendRawLine(String.format("BATCH +%s %s %s", batchId, MULTILINE_CAPABILITY, target));
+            int batchBytes = 0;
+            int batchLines = 0;
+            while (next < chunks.size() && batchLines < maxBatchLines &&
+                    (0 == batchLines || batchBytes + utf8Length(chunks.get(next)) <= maxBatchBytes)) {
+                final String chunk = chunks.get(next);
+                final String tags = continuations.get(next) && 0 < batchLines
+                        ? "batch=" + batchId + ';' + MULTILINE_CONCAT_TAG : "batch=" + batchId;
+                next++;
+                batchBytes += utf8Length(chunk);
+                batchLines++;
+                this.connection.sendRawLine(String.format("@%s PRIVMSG %s :%s", tags, target, chunk));
+            }
+            this.connection.sendRawLine("BATCH -" + batchId);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                this.executor.shutdownNow();
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * What is used of the IRC client.
+     */
+    interface Connection {
+        String getNick();
+
+        /**
+         * @return the value of draft/multiline, empty if the server doesn't support batches of it
+         */
+        Optional<String> getMultiline();
+
+        void sendMessage(String target, String message);
+
+        void sendRawLine(String line);
+    }
+}
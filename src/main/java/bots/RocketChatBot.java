@@ -18,15 +18,20 @@
 package bots;
 
 import core.BotsController;
+import core.MessageTemplate;
+import messages.AttachmentPayload;
 import messages.BotDocumentMessage;
 import messages.BotDocumentType;
 import messages.BotMessage;
 import messages.BotTextMessage;
+import messages.ImageVariant;
+import org.javatuples.Quartet;
 import org.javatuples.Triplet;
 import org.kde.brooklyn.RocketChatAttachment;
 import org.kde.brooklyn.RocketChatException;
 import org.kde.brooklyn.RocketChatMessage;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -34,6 +39,7 @@ import java.net.URL;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.ResourceBundle;
 import java.util.regex.Pattern;
 
 public class RocketChatBot implements Bot {
@@ -42,15 +48,21 @@ public class RocketChatBot implements Bot {
     private static final String FILE_UPLOAD_URL_KEY = "file-upload-url";
     private static final String PASSWORD_KEY = "password";
     private static final Pattern PATTERN = Pattern.compile("\\s+");
+    private static final int DEFAULT_EDIT_DELAY = 1500;
+    private final ResourceBundle resourceBundle = ResourceBundle.getBundle("resources");
     private final BotsController botsController = new BotsController();
     private org.kde.brooklyn.RocketChatBot bot;
 
     private String botId;
+    private ImageVariant imageVariant = ImageVariant.ORIGINAL;
+    private int editDelay = DEFAULT_EDIT_DELAY;
 
     @Override
     public boolean init(final String botId, final Map<String, String> configs,
                         final String[] channels) {
         this.botId = botId;
+        this.imageVariant = Configs.getImageVariant(configs);
+        this.editDelay = Configs.getEditDelay(configs, DEFAULT_EDIT_DELAY);
 
         if (!configs.containsKey(WEBSOCKET_URL_KEY) ||
                 !configs.containsKey(USERNAME_KEY) ||
@@ -109,8 +121,8 @@ public class RocketChatBot implements Bot {
     }
 
     @Override
-    public void addBridge(Bot bot, String channelTo, String channelFrom) {
-        botsController.addBridge(bot, channelTo, channelFrom);
+    public void setBridges(List<Triplet<Bot, String, String>> bridges) {
+        botsController.setBridges(bridges);
     }
 
     private void onMessageReceived(RocketChatMessage message) {
@@ -135,24 +147,28 @@ public class RocketChatBot implements Bot {
             final BotMessage botMessage = new BotMessage(message.username, message.roomId, this);
             final BotTextMessage botTextMessage = new BotTextMessage(botMessage, attachment.description.get());
 
-            final BotDocumentMessage botDocumentMessage =
-                    new BotDocumentMessage(botTextMessage,
-                            filename, extension, attachment.data, BotDocumentType.OTHER);
+            try (AttachmentPayload payload = AttachmentPayload.of(attachment.data)) {
+                final BotDocumentMessage botDocumentMessage =
+                        new BotDocumentMessage(botTextMessage,
+                                filename, extension, payload, BotDocumentType.OTHER);
 
-            botsController.sendMessage(botDocumentMessage, message.roomId, Optional.of(message.id));
+                botsController.sendMessage(botDocumentMessage, message.roomId, Optional.of(message.id));
+            }
         } else {
             String[] textSpaceSplitted = PATTERN.split(message.msg);
             if (2 == textSpaceSplitted.length &&
                     textSpaceSplitted[0].equals("@" + message.username) &&
                     "users".equals(textSpaceSplitted[1])) {
-                List<Triplet<Bot, String, List<String>>> users = botsController.askForUsers(message.roomId);
+                List<Quartet<Bot, String, List<String>, Boolean>> users = botsController.askForUsers(message.roomId);
                 users.forEach(channel -> {
                     final String channelName = channel.getValue0().getChannelName(channel.getValue1());
                     final StringBuilder output = new StringBuilder();
                     output.append(channel.getValue0().getClass().getSimpleName())
                             .append('/')
-                            .append(channelName)
-                            .append(": ");
+                            .append(channelName);
+                    if (channel.getValue3())
+                        output.append(' ').append(resourceBundle.getString("users-stale"));
+                    output.append(": ");
 
                     channel.getValue2().forEach(userTo -> output.append(userTo).append(", "));
 
@@ -186,9 +202,7 @@ public class RocketChatBot implements Bot {
 
     @Override
     public Optional<String> sendMessage(BotTextMessage msg, String channelTo) {
-        final String msgText = BotsController.messageFormatter(
-                msg.getBotFrom(), msg.getChannelFrom(), msg.getNicknameFrom(),
-                Optional.of(msg.getText()));
+        final String msgText = MessageTemplate.forChannel(this.botId, channelTo).format(msg, Optional.of(msg.getText()));
 
         final String msgId = bot.sendMessage(msgText, channelTo, Optional.empty());
         return Optional.of(msgId);
@@ -196,23 +210,26 @@ public class RocketChatBot implements Bot {
 
     @Override
     public Optional<String> sendMessage(BotDocumentMessage msg, String channelTo) {
-        String caption = BotsController.messageFormatter(
-                msg.getBotFrom(), msg.getChannelFrom(),
-                msg.getNicknameFrom(), Optional.ofNullable(msg.getText()));
+        String caption = MessageTemplate.forChannel(this.botId, channelTo).format(msg, Optional.ofNullable(msg.getText()));
         String filename = msg.getFilename() + '.' + msg.getFileExtension();
 
         final RocketChatAttachment attachment = new RocketChatAttachment();
         attachment.description = Optional.of(caption);
         attachment.title = filename;
-        attachment.data = msg.getDoc();
+        try {
+            attachment.data = msg.getDoc().toByteArray();
+        } catch (IOException e) {
+            System.err.println("Error while reading the doc");
+            e.printStackTrace();
+            return Optional.empty();
+        }
 
         return Optional.of(bot.sendMessage(caption, attachment, channelTo, Optional.empty()));
     }
 
     @Override
     public void editMessage(BotTextMessage msg, String channelTo, String messageId) {
-        final String text = BotsController.messageFormatter(msg.getBotFrom(),
-                msg.getChannelFrom(), msg.getNicknameFrom(), Optional.of(msg.getText()));
+        final String text = MessageTemplate.forChannel(this.botId, channelTo).format(msg, Optional.of(msg.getText()));
         bot.updateMessage(text, messageId, channelTo);
     }
 
@@ -221,6 +238,16 @@ public class RocketChatBot implements Bot {
         return bot.getUsers(channel);
     }
 
+    @Override
+    public ImageVariant getImageVariant() {
+        return this.imageVariant;
+    }
+
+    @Override
+    public int getEditDelay() {
+        return this.editDelay;
+    }
+
     @Override
     public String getId() {
         return botId;
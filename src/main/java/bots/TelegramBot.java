@@ -17,15 +17,27 @@
 
 package bots;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import core.BotsController;
+import core.MessageTemplate;
 import maps.OpenStreetMap;
+import messages.AttachmentPayload;
 import messages.BotDocumentMessage;
 import messages.BotDocumentType;
 import messages.BotMessage;
 import messages.BotTextMessage;
-import org.apache.commons.io.IOUtils;
+import messages.ImageVariant;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
 import org.javatuples.Pair;
+import org.javatuples.Quartet;
 import org.javatuples.Triplet;
+import org.telegram.telegrambots.ApiConstants;
 import org.telegram.telegrambots.ApiContextInitializer;
 import org.telegram.telegrambots.TelegramBotsApi;
 import org.telegram.telegrambots.api.methods.GetFile;
@@ -37,27 +49,66 @@ import org.telegram.telegrambots.api.objects.stickers.Sticker;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.exceptions.TelegramApiException;
 import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.generics.BotSession;
 
-import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
-// TODO: implement a way not to exceed bot messages limit
 public class TelegramBot extends TelegramLongPollingBot implements Bot {
     private static final String USERNAME_KEY = "username";
     private static final String TOKEN_KEY = "password";
+    private static final String GLOBAL_RATE_KEY = "global-messages-per-second";
+    private static final String CHAT_RATE_KEY = "chat-messages-per-minute";
+    private static final String MEDIA_CACHE_KEY = "media-cache-megabytes";
+    private static final int DEFAULT_MEDIA_CACHE = 256;
+    private static final String DOWNLOAD_THREADS_KEY = "download-threads";
+    private static final int DEFAULT_DOWNLOAD_THREADS = 4;
+    private static final String LANES_KEY = "update-lanes";
+    private static final String API_URL_KEY = "api-url";
+    private static final String DEFAULT_API_URL = "https://api.telegram.org/";
+    private static final String MODE_KEY = "mode";
+    private static final String WEBHOOK_MODE = "webhook";
+    private static final String WEBHOOK_URL_KEY = "webhook-url";
+    private static final String WEBHOOK_PORT_KEY = "webhook-port";
+    private static final int DEFAULT_WEBHOOK_PORT = 8080;
+    private static final String PRESENCE_HOURS_KEY = "users-inactivity-hours";
+    private static final int DEFAULT_PRESENCE_HOURS = 24 * 30;
+    private static final String PRESENCE_MAX_USERS_KEY = "users-per-chat";
+    private static final int DEFAULT_PRESENCE_MAX_USERS = 1000;
+    // See https://core.telegram.org/bots/faq#my-bot-is-hitting-limits-how-do-i-avoid-this
+    private static final double DEFAULT_GLOBAL_RATE = 30;
+    private static final double DEFAULT_CHAT_RATE = 20;
+    private static final int DEFAULT_EDIT_DELAY = 1500;
+    // e.g. "Bad Request: wrong file identifier/HTTP URL specified", "Bad Request: invalid file id"
+    private static final Pattern INVALID_FILE_ID = Pattern.compile(
+            "(wrong|invalid).*file[ _]?(identifier|id)", Pattern.CASE_INSENSITIVE);
 
     private static TelegramBotsApi telegramBotsApi;
-    // You can't retrieve users list, so it'll store users who wrote at least one time here
-    private final HashSet<Pair<String, String>> users = new LinkedHashSet<>();
-    private final Map<Long, String> chats = new HashMap<>();
+    private final Map<Long, String> chats = Collections.synchronizedMap(new HashMap<>());
+    private final ResourceBundle resourceBundle = ResourceBundle.getBundle("resources");
     private final BotsController botsController = new BotsController();
+    private final TelegramFileIds fileIds = new TelegramFileIds();
     private Map<String, String> configs = new LinkedHashMap<>(0);
+    private TelegramScheduler scheduler;
+    // You can't retrieve users list, so it'll store users who wrote recently here
+    private TelegramPresence users;
+    private TelegramMediaCache mediaCache;
+    private TelegramDownloader downloader;
+    private UpdateDispatcher dispatcher;
+    private String apiUrl = DEFAULT_API_URL;
+    private String webhookPath;
+    private int webhookPort;
+    private BotSession session;
     private String botId;
+    private ImageVariant imageVariant = ImageVariant.ORIGINAL;
+    private int editDelay = DEFAULT_EDIT_DELAY;
 
     public TelegramBot() {
         if (telegramBotsApi == null) {
@@ -71,56 +122,163 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
 
     @Override
     public boolean init(String botId, Map<String, String> configs, String[] channels) {
+        // Set first, the updates can arrive as soon as the bot is registered
+        this.botId = botId;
         this.configs = configs;
+        this.imageVariant = Configs.getImageVariant(configs);
+        this.editDelay = Configs.getEditDelay(configs, DEFAULT_EDIT_DELAY);
+        this.scheduler = new TelegramScheduler(
+                Configs.getDouble(configs, GLOBAL_RATE_KEY, DEFAULT_GLOBAL_RATE),
+                Configs.getDouble(configs, CHAT_RATE_KEY, DEFAULT_CHAT_RATE));
+        this.mediaCache = new TelegramMediaCache(
+                Configs.getInt(configs, MEDIA_CACHE_KEY, DEFAULT_MEDIA_CACHE) * 1024L * 1024L);
+        // The webhook thread is shared by the bots on its port, it must not run downloads
+        this.downloader = new TelegramDownloader(botId,
+                Configs.getInt(configs, DOWNLOAD_THREADS_KEY, DEFAULT_DOWNLOAD_THREADS),
+                !WEBHOOK_MODE.equals(configs.get(MODE_KEY)));
+        this.dispatcher = new UpdateDispatcher(botId,
+                Configs.getInt(configs, LANES_KEY, Runtime.getRuntime().availableProcessors()));
+        this.users = new TelegramPresence(botId,
+                TimeUnit.HOURS.toMillis(Configs.getInt(configs, PRESENCE_HOURS_KEY, DEFAULT_PRESENCE_HOURS)),
+                Configs.getInt(configs, PRESENCE_MAX_USERS_KEY, DEFAULT_PRESENCE_MAX_USERS));
+
+        String apiUrl = configs.getOrDefault(API_URL_KEY, DEFAULT_API_URL);
+        this.apiUrl = apiUrl.endsWith("/") ? apiUrl : apiUrl + '/';
+        getOptions().setBaseUrl(this.apiUrl + "bot");
 
         try {
-            telegramBotsApi.registerBot(this);
-        } catch (TelegramApiRequestException e) {
+            if (WEBHOOK_MODE.equals(configs.get(MODE_KEY)))
+                registerWebhook();
+            else
+                session = telegramBotsApi.registerBot(this);
+        } catch (TelegramApiException | IOException e) {
             e.printStackTrace();
+            try {
+                close();
+            } catch (Exception e1) {
+                e1.printStackTrace();
+            }
             return false;
         }
 
-        this.botId = botId;
-
         return true;
     }
 
     /**
-     * @return a list of {@literal Triplet<byte[] data, String filename, String fileExtension>}
+     * Listens for the updates on the local port and asks Telegram to push them there.
      */
-    private Triplet<byte[], String, String> downloadFromFileId(String fileId) throws TelegramApiException, IOException {
-        GetFile getFile = new GetFile();
-        getFile.setFileId(fileId);
+    private void registerWebhook() throws TelegramApiException, IOException {
+        String webhookUrl = configs.get(WEBHOOK_URL_KEY);
+        if (null == webhookUrl)
+            throw new TelegramApiException(String.format("'%s' is required by the webhook mode", WEBHOOK_URL_KEY));
+
+        // The token is secret, so is its hash: nobody else can push updates
+        String path = "/telegram/" + DigestUtils.sha256Hex(getBotToken());
+        int port = Configs.getInt(configs, WEBHOOK_PORT_KEY, DEFAULT_WEBHOOK_PORT);
+        TelegramWebhookServer.register(port, path, this::onUpdateReceived);
+        this.webhookPath = path;
+        this.webhookPort = port;
+
+        String url = (webhookUrl.endsWith("/") ? webhookUrl.substring(0, webhookUrl.length() - 1) : webhookUrl) + path;
+        callWebhookMethod("setWebhook", Collections.singletonList(new BasicNameValuePair("url", url)));
+    }
 
-        File file = execute(getFile);
-        URL fileUrl = new URL(file.getFileUrl(configs.get(TOKEN_KEY)));
-        HttpURLConnection httpConn = (HttpURLConnection) fileUrl.openConnection();
-        InputStream inputStream = httpConn.getInputStream();
-        byte[] output = IOUtils.toByteArray(inputStream);
+    /**
+     * Calls the webhook methods, which the library of this version doesn't support.
+     */
+    private void callWebhookMethod(String method, List<NameValuePair> parameters)
+            throws TelegramApiException, IOException {
+        HttpPost request = new HttpPost(getBaseUrl() + method);
+        request.setEntity(new UrlEncodedFormEntity(parameters, StandardCharsets.UTF_8));
+        try (CloseableHttpResponse response = TelegramDownloader.getHttpClient().execute(request)) {
+            JsonNode result = new ObjectMapper().readTree(response.getEntity().getContent());
+            if (!result.path(ApiConstants.RESPONSE_FIELD_OK).asBoolean(false))
+                throw new TelegramApiException(String.format("%s failed: %s", method,
+                        result.path("description").asText()));
+        }
+    }
+
+    /**
+     * @return a list of {@literal Triplet<AttachmentPayload data, String filename, String fileExtension>}
+     */
+    private Triplet<AttachmentPayload, String, String> downloadFromFileId(String fileId) throws TelegramApiException, IOException {
+        // Telegram 3.2 has no file_unique_id, but a file keeps its file_id when it's forwarded to the same bot
+        Optional<Triplet<AttachmentPayload, String, String>> cached = mediaCache.get(fileId);
+        if (cached.isPresent())
+            return cached.get();
+
+        Optional<String> cachedPath = mediaCache.getPath(fileId);
+        String fileName = cachedPath.isPresent() ? cachedPath.get() : getFilePath(fileId);
+
+        AttachmentPayload output;
+        try {
+            output = download(fileName);
+        } catch (FileNotFoundException e) {
+            if (!cachedPath.isPresent())
+                throw e;
+
+            // The cached path expired earlier than expected
+            mediaCache.removePath(fileId);
+            fileName = getFilePath(fileId);
+            output = download(fileName);
+        }
 
-        String fileName = file.getFilePath();
         String[] fileNameSplitted = fileName.split("\\.");
         String extension = fileNameSplitted[fileNameSplitted.length - 1];
         String filenameWithoutExtension = fileName.substring(0, fileName.length() - extension.length() - 1);
 
-        inputStream.close();
-        httpConn.disconnect();
+        Triplet<AttachmentPayload, String, String> data = new Triplet<>(output, filenameWithoutExtension, extension);
+        mediaCache.put(fileId, data);
+        return data;
+    }
 
-        return new Triplet<>(output, filenameWithoutExtension, extension);
+    /**
+     * @return true if Telegram refused a file_id, other bad requests wouldn't be fixed by uploading the file
+     */
+    private static boolean isInvalidFileId(TelegramApiRequestException e) {
+        return 400 == e.getErrorCode() && null != e.getApiResponse()
+                && INVALID_FILE_ID.matcher(e.getApiResponse()).find();
+    }
+
+    private static <T> T getMedia(CompletableFuture<T> media) throws TelegramApiException, IOException {
+        try {
+            return media.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TelegramApiException)
+                throw (TelegramApiException) e.getCause();
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private String getFilePath(String fileId) throws TelegramApiException {
+        GetFile getFile = new GetFile();
+        getFile.setFileId(fileId);
+
+        String filePath = execute(getFile).getFilePath();
+        mediaCache.putPath(fileId, filePath);
+        return filePath;
+    }
+
+    private AttachmentPayload download(String filePath) throws IOException {
+        return TelegramDownloader.download(String.format("%sfile/bot%s/%s", apiUrl, getBotToken(), filePath));
     }
 
     private void onAttachmentReceived(BotMessage botMsg, Message message,
-                                      String fileId, BotDocumentType type,
-                                      String msgId) {
+                                      CompletableFuture<Triplet<AttachmentPayload, String, String>> media,
+                                      BotDocumentType type, String msgId) {
         try {
-            Triplet<byte[], String, String> data = downloadFromFileId(fileId);
+            Triplet<AttachmentPayload, String, String> data = TelegramBot.getMedia(media);
 
-            BotTextMessage textMessage = new BotTextMessage(botMsg, message.getCaption());
-            BotDocumentMessage documentMessage = new BotDocumentMessage(textMessage,
-                    data.getValue1(), data.getValue2(), data.getValue0(), type);
+            try (AttachmentPayload payload = data.getValue0()) {
+                BotTextMessage textMessage = new BotTextMessage(botMsg, message.getCaption());
+                BotDocumentMessage documentMessage = new BotDocumentMessage(textMessage,
+                        data.getValue1(), data.getValue2(), payload, type);
 
-            botsController.sendMessage(documentMessage,
-                    Long.toString(message.getChatId()), Optional.of(msgId));
+                botsController.sendMessage(documentMessage,
+                        Long.toString(message.getChatId()), Optional.of(msgId));
+            }
         } catch (TelegramApiException | IOException e) {
             System.err.println("Error loading the media received");
             e.printStackTrace();
@@ -164,7 +322,7 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
         String text = message.getText();
 
         if (text.equals("/users")) {
-            List<Triplet<Bot, String, List<String>>> users =
+            List<Quartet<Bot, String, List<String>, Boolean>> users =
                     botsController.askForUsers(Long.toString(message.getChatId()));
             StringBuilder output = new StringBuilder();
             users.forEach(channel -> {
@@ -172,8 +330,10 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
 
                 output.append(channel.getValue0().getClass().getSimpleName())
                         .append('/')
-                        .append(channelName)
-                        .append(':')
+                        .append(channelName);
+                if (channel.getValue3())
+                    output.append(' ').append(resourceBundle.getString("users-stale"));
+                output.append(':')
                         .append(System.lineSeparator());
 
                 channel.getValue2().forEach(userTo -> output.append(userTo).append(System.lineSeparator()));
@@ -181,11 +341,12 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
                 output.append(System.lineSeparator());
             });
 
+            final String chatId = Long.toString(message.getChatId());
             SendMessage messageToSend = new SendMessage()
-                    .setChatId(Long.toString(message.getChatId()))
+                    .setChatId(chatId)
                     .setText(output.toString());
             try {
-                execute(messageToSend);
+                scheduler.execute(chatId, () -> execute(messageToSend));
             } catch (TelegramApiException e) {
                 System.err.println("Failed to send message from TelegramBot");
                 e.printStackTrace();
@@ -218,99 +379,121 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
     }
 
 
+    /**
+     * @return a {@literal Pair<String fileId, BotDocumentType type>} if the message has an attachment
+     */
+    private static Optional<Pair<String, BotDocumentType>> getAttachment(Message message) {
+        // Image
+        if (message.hasPhoto()) {
+            List<PhotoSize> photos = message.getPhoto();
+            PhotoSize photo = photos.get(photos.size() - 1);
+            return Optional.of(new Pair<>(photo.getFileId(), BotDocumentType.IMAGE));
+        }
+
+        // Voice message
+        else if (message.getVoice() != null) {
+            Voice voice = message.getVoice();
+            return Optional.of(new Pair<>(voice.getFileId(), BotDocumentType.AUDIO));
+        }
+
+        // Document
+        else if (message.hasDocument()) {
+            Document document = message.getDocument();
+            return Optional.of(new Pair<>(document.getFileId(), BotDocumentType.OTHER));
+        }
+
+        // Videomessage
+        else if (null != message.getVideoNote()) {
+            VideoNote video = message.getVideoNote();
+            return Optional.of(new Pair<>(video.getFileId(), BotDocumentType.VIDEO));
+        }
+
+        // Video
+        else if (null != message.getVideo()) {
+            Video video = message.getVideo();
+            return Optional.of(new Pair<>(video.getFileId(), BotDocumentType.VIDEO));
+        }
+
+        // Audio
+        else if (null != message.getAudio()) {
+            Audio audio = message.getAudio();
+            return Optional.of(new Pair<>(audio.getFileId(), BotDocumentType.AUDIO));
+        }
+
+        return Optional.empty();
+    }
+
     @Override
     public void onUpdateReceived(Update update) {
         if (update.hasMessage()) {
             Message message = update.getMessage();
-            long chatId = message.getChatId();
-            final String messageId = message.getMessageId().toString();
-
-            final User user = message.getFrom();
-            if (null != message.getLeftChatMember())
-                users.remove(new Pair(Long.toString(chatId), message.getLeftChatMember()));
-            else
-                users.add(new Pair(Long.toString(chatId), user.getUserName()));
 
-            Chat chat = message.getChat();
-            chats.put(chat.getId(), chat.getTitle());
+            // Chats are handled in parallel and media are downloaded in parallel,
+            // but the messages of a chat are bridged in order
+            Optional<Pair<String, BotDocumentType>> attachment = TelegramBot.getAttachment(message);
+            CompletableFuture<Triplet<AttachmentPayload, String, String>> media = attachment.isPresent()
+                    ? downloader.submit(() -> downloadFromFileId(attachment.get().getValue0()))
+                    : CompletableFuture.completedFuture(null);
 
-            String channelFrom = chat.getId().toString();
-            String authorNickname = user.getUserName();
-
-            BotMessage botMsg = new BotMessage(authorNickname, channelFrom, this);
+            dispatcher.submit(message.getChatId(), media, () -> onMessageReceived(message, attachment, media));
+        }
 
-            // Send image
-            if (message.hasPhoto()) {
-                List<PhotoSize> photos = message.getPhoto();
-                PhotoSize photo = photos.get(photos.size() - 1);
-                onAttachmentReceived(botMsg, message, photo.getFileId(),
-                        BotDocumentType.IMAGE, messageId);
-            }
+        // Edit a message
+        else if (update.hasEditedMessage()) {
+            Message msgEdited = update.getEditedMessage();
+            Chat chat = msgEdited.getChat();
+            dispatcher.submit(chat.getId(), UpdateDispatcher.READY, () -> onEditedReceived(msgEdited, chat));
+        }
+    }
 
-            // Send voice message
-            else if (message.getVoice() != null) {
-                Voice voice = message.getVoice();
-                onAttachmentReceived(botMsg, message, voice.getFileId(),
-                        BotDocumentType.AUDIO, messageId);
-            }
+    private void onMessageReceived(Message message, Optional<Pair<String, BotDocumentType>> attachment,
+                                   CompletableFuture<Triplet<AttachmentPayload, String, String>> media) {
+        long chatId = message.getChatId();
+        final String messageId = message.getMessageId().toString();
 
-            // Send document
-            else if (message.hasDocument()) {
-                Document document = message.getDocument();
-                onAttachmentReceived(botMsg, message, document.getFileId(),
-                        BotDocumentType.OTHER, messageId);
-            }
+        final User user = message.getFrom();
+        if (null != message.getLeftChatMember())
+            users.leave(Long.toString(chatId), message.getLeftChatMember().getId());
+        else
+            users.touch(Long.toString(chatId), user.getId(), TelegramBot.getDisplayName(user));
+        if (null != message.getNewChatMembers())
+            message.getNewChatMembers().forEach(member ->
+                    users.touch(Long.toString(chatId), member.getId(), TelegramBot.getDisplayName(member)));
 
-            // Send videomessages
-            else if (null != message.getVideoNote()) {
-                VideoNote video = message.getVideoNote();
-                onAttachmentReceived(botMsg, message, video.getFileId(),
-                        BotDocumentType.VIDEO, messageId);
-            }
+        Chat chat = message.getChat();
+        chats.put(chat.getId(), chat.getTitle());
 
-            // Send video
-            else if (null != message.getVideo()) {
-                Video video = message.getVideo();
-                onAttachmentReceived(botMsg, message, video.getFileId(),
-                        BotDocumentType.VIDEO, messageId);
-            }
+        String channelFrom = chat.getId().toString();
+        String authorNickname = user.getUserName();
 
-            // Send audio
-            else if (null != message.getAudio()) {
-                Audio audio = message.getAudio();
-                onAttachmentReceived(botMsg, message, audio.getFileId(),
-                        BotDocumentType.AUDIO, messageId);
-            }
+        BotMessage botMsg = new BotMessage(authorNickname, channelFrom, this);
 
-            // Send position
-            else if (message.hasLocation()) {
-                Location location = message.getLocation();
-                onLocationReceived(botMsg, message, messageId);
-            }
+        // Send image, voice message, document, videomessage, video or audio
+        if (attachment.isPresent())
+            onAttachmentReceived(botMsg, message, media,
+                    attachment.get().getValue1(), messageId);
 
-            // Send contact
-            else if (null != message.getContact())
-                onContactReceived(botMsg, message, messageId);
+        // Send position
+        else if (message.hasLocation()) {
+            Location location = message.getLocation();
+            onLocationReceived(botMsg, message, messageId);
+        }
 
-            // Send sticker
-            else if (message.getSticker() != null) {
-                Sticker sticker = message.getSticker();
-                BotTextMessage textMessage = new BotTextMessage(botMsg, sticker.getEmoji());
-                botsController.sendMessage(textMessage, channelFrom,
-                        Optional.of(messageId));
-            }
+        // Send contact
+        else if (null != message.getContact())
+            onContactReceived(botMsg, message, messageId);
 
-            // Send plain text
-            else if (message.hasText())
-                onPlainTextReceived(message, botMsg, messageId);
+        // Send sticker
+        else if (message.getSticker() != null) {
+            Sticker sticker = message.getSticker();
+            BotTextMessage textMessage = new BotTextMessage(botMsg, sticker.getEmoji());
+            botsController.sendMessage(textMessage, channelFrom,
+                    Optional.of(messageId));
         }
 
-        // Edit a message
-        else if (update.hasEditedMessage()) {
-            Message msgEdited = update.getEditedMessage();
-            Chat chat = msgEdited.getChat();
-            onEditedReceived(msgEdited, chat);
-        }
+        // Send plain text
+        else if (message.hasText())
+            onPlainTextReceived(message, botMsg, messageId);
     }
 
     @Override
@@ -324,19 +507,17 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
     }
 
     @Override
-    public void addBridge(Bot bot, String channelTo, String channelFrom) {
-        botsController.addBridge(bot, channelTo, channelFrom);
+    public void setBridges(List<Triplet<Bot, String, String>> bridges) {
+        botsController.setBridges(bridges);
     }
 
     @Override
     public Optional<String> sendMessage(BotTextMessage msg, String channelTo) {
         SendMessage message = new SendMessage()
                 .setChatId(channelTo)
-                .setText(BotsController.messageFormatter(
-                        msg.getBotFrom(), msg.getChannelFrom(),
-                        msg.getNicknameFrom(), Optional.ofNullable(msg.getText())));
+                .setText(MessageTemplate.forChannel(this.botId, channelTo).format(msg, Optional.ofNullable(msg.getText())));
         try {
-            Message sentMessage = execute(message);
+            Message sentMessage = scheduler.execute(channelTo, () -> execute(message));
             return Optional.of(sentMessage.getMessageId().toString());
         } catch (TelegramApiException e) {
             System.err.println(String.format("Failed to send message from %s to TelegramBot", msg.getBotFrom().getId()));
@@ -347,33 +528,52 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
 
     @Override
     public Optional<String> sendMessage(BotDocumentMessage msg, String channelTo) {
-        String caption = BotsController.messageFormatter(
-                msg.getBotFrom(), msg.getChannelFrom(),
-                msg.getNicknameFrom(), Optional.ofNullable(msg.getText()));
+        String caption = MessageTemplate.forChannel(this.botId, channelTo).format(msg, Optional.ofNullable(msg.getText()));
         String filename = msg.getFilename() + '.' + msg.getFileExtension();
 
-        try (InputStream docStream = new ByteArrayInputStream(msg.getDoc())) {
-            Message sentMessage;
-            switch (msg.getDocumentType()) {
-                case IMAGE:
-                    sentMessage = sendImage(caption, channelTo,
-                            docStream, filename);
-                    break;
-                case AUDIO:
-                    sentMessage = sendAudio(caption, channelTo,
-                            docStream, filename);
-                    break;
-                case VIDEO:
-                    sentMessage = sendVideo(caption, channelTo,
-                            docStream, filename);
-                    break;
-                default:
-                    sentMessage = sendDocument(caption, channelTo,
-                            docStream, filename);
+        final String key;
+        final Optional<String> fileId;
+        try {
+            key = msg.getDocumentType().name() + ':' + msg.getContentHash();
+            fileId = fileIds.get(key);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Can't read the attachment");
+            e.printStackTrace();
+            return Optional.empty();
+        }
+
+        try {
+            if (fileId.isPresent()) {
+                // The content has been uploaded already, no need to send it again
+                try {
+                    Message sentMessage = scheduler.execute(channelTo, () ->
+                            sendDocument(msg.getDocumentType(), caption, channelTo, fileId.get(), null, filename));
+                    return Optional.of(sentMessage.getMessageId().toString());
+                } catch (TelegramApiRequestException e) {
+                    if (!TelegramBot.isInvalidFileId(e))
+                        throw e;
+
+                    // The file_id has expired, the content is uploaded again
+                    fileIds.remove(key, fileId.get());
+                }
             }
-            return Optional.of(sentMessage.getMessageId().toString());
-        } catch (IOException | TelegramApiException e) {
-            // IOException should never happens
+
+            Optional<String> uploadedId = Optional.empty();
+            try {
+                // A new stream is opened on each attempt, so a retried upload is sent whole
+                Message sentMessage = scheduler.execute(channelTo, () -> {
+                    try (InputStream docStream = msg.getDoc().openStream()) {
+                        return sendDocument(msg.getDocumentType(), caption, channelTo, null, docStream, filename);
+                    } catch (IOException e) {
+                        throw new TelegramApiException("Can't read the attachment", e);
+                    }
+                });
+                uploadedId = TelegramBot.getAttachment(sentMessage).map(Pair::getValue0);
+                return Optional.of(sentMessage.getMessageId().toString());
+            } finally {
+                fileIds.uploaded(key, uploadedId);
+            }
+        } catch (TelegramApiException e) {
             e.printStackTrace();
             System.err.println(String.format("Failed to send message from %s to TelegramBot",
                     msg.getBotFrom().getId()));
@@ -381,65 +581,93 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
         }
     }
 
-    private Message sendDocument(String caption, String channelTo, InputStream docStream,
-                                 String filename)
+    /**
+     * Sends the document with its file_id if the stream is null, uploads it otherwise.
+     */
+    private Message sendDocument(BotDocumentType type, String caption, String channelTo,
+                                 String fileId, InputStream docStream, String filename)
+            throws TelegramApiException {
+        switch (type) {
+            case IMAGE:
+                return sendImage(caption, channelTo, fileId, docStream, filename);
+            case AUDIO:
+                return sendAudio(caption, channelTo, fileId, docStream, filename);
+            case VIDEO:
+                return sendVideo(caption, channelTo, fileId, docStream, filename);
+            default:
+                return sendDocument(caption, channelTo, fileId, docStream, filename);
+        }
+    }
+
+    private Message sendDocument(String caption, String channelTo, String fileId,
+                                 InputStream docStream, String filename)
             throws TelegramApiException {
         SendDocument message = new SendDocument()
                 .setChatId(channelTo);
         message.setCaption(caption);
 
-        message.setNewDocument(filename, docStream);
+        if (null == docStream)
+            message.setDocument(fileId);
+        else
+            message.setNewDocument(filename, docStream);
         return sendDocument(message);
     }
 
-    private Message sendImage(String caption, String channelTo, InputStream docStream,
-                              String filename)
+    private Message sendImage(String caption, String channelTo, String fileId,
+                              InputStream docStream, String filename)
             throws TelegramApiException {
 
         SendPhoto message = new SendPhoto()
                 .setChatId(channelTo);
         message.setCaption(caption);
 
-        message.setNewPhoto(filename, docStream);
+        if (null == docStream)
+            message.setPhoto(fileId);
+        else
+            message.setNewPhoto(filename, docStream);
         return sendPhoto(message);
     }
 
-    private Message sendAudio(String caption, String channelTo, InputStream docStream,
-                              String filename)
+    private Message sendAudio(String caption, String channelTo, String fileId,
+                              InputStream docStream, String filename)
             throws TelegramApiException {
 
         SendAudio message = new SendAudio()
                 .setChatId(channelTo);
         message.setCaption(caption);
 
-        message.setNewAudio(filename, docStream);
+        if (null == docStream)
+            message.setAudio(fileId);
+        else
+            message.setNewAudio(filename, docStream);
         return sendAudio(message);
     }
 
-    private Message sendVideo(String caption, String channelTo, InputStream docStream,
-                              String fileExtension)
+    private Message sendVideo(String caption, String channelTo, String fileId,
+                              InputStream docStream, String fileExtension)
             throws TelegramApiException {
 
         SendVideo message = new SendVideo()
                 .setChatId(channelTo);
         message.setCaption(caption);
 
-        message.setNewVideo("audio." + fileExtension, docStream);
+        if (null == docStream)
+            message.setVideo(fileId);
+        else
+            message.setNewVideo("audio." + fileExtension, docStream);
         return sendVideo(message);
     }
 
     @Override
     public void editMessage(BotTextMessage msg, String channelTo, String messageId) {
-        String messageText = BotsController.messageFormatter(
-                msg.getBotFrom(), msg.getChannelFrom(), msg.getNicknameFrom(),
-                Optional.ofNullable(msg.getText()));
+        String messageText = MessageTemplate.forChannel(this.botId, channelTo).format(msg, Optional.ofNullable(msg.getText()));
         EditMessageText text = new EditMessageText();
         text.setChatId(channelTo);
         text.setMessageId(Integer.parseInt(messageId));
         text.setText(messageText);
 
         try {
-            execute(text);
+            scheduler.execute(channelTo, () -> execute(text));
         } catch (TelegramApiException e) {
             System.out.println("Waring: message text not found, trying to edit that as a caption...");
             e.printStackTrace(System.out);
@@ -450,7 +678,7 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
             caption.setCaption(messageText);
 
             try {
-                execute(caption);
+                scheduler.execute(channelTo, () -> execute(caption));
             } catch (TelegramApiException e1) {
                 System.err.println("Error while changing img caption.");
                 e1.printStackTrace();
@@ -460,10 +688,24 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
 
     @Override
     public List<String> getUsers(String channel) {
-        return users.stream()
-                .filter(x -> x.getValue0().equals(channel))
-                .map(Pair::getValue1)
-                .collect(Collectors.toList());
+        return users.getUsers(channel);
+    }
+
+    /**
+     * @return the username, or the first name of the users without one
+     */
+    private static String getDisplayName(User user) {
+        return null != user.getUserName() ? user.getUserName() : user.getFirstName();
+    }
+
+    @Override
+    public ImageVariant getImageVariant() {
+        return this.imageVariant;
+    }
+
+    @Override
+    public int getEditDelay() {
+        return this.editDelay;
     }
 
     @Override
@@ -471,6 +713,41 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
         return this.botId;
     }
 
+    /**
+     * @return the number of requests to Telegram waiting to be sent
+     */
+    public int getQueueDepth() {
+        return scheduler.getQueueDepth();
+    }
+
+    /**
+     * @return the number of media waiting to be downloaded
+     */
+    public int getDownloadQueueDepth() {
+        return downloader.getQueueDepth();
+    }
+
+    /**
+     * @return the number of updates waiting on each lane
+     */
+    public int[] getLaneBacklogs() {
+        return dispatcher.getLaneBacklogs();
+    }
+
+    /**
+     * @return the share of the media found in the download cache
+     */
+    public double getMediaCacheHitRate() {
+        return mediaCache.getHitRate();
+    }
+
+    /**
+     * @return the bytes held by the download cache
+     */
+    public long getMediaCacheSize() {
+        return mediaCache.getSize();
+    }
+
     @Override
     public String getChannelName(String channelId) {
         try {
@@ -480,7 +757,34 @@ public class TelegramBot extends TelegramLongPollingBot implements Bot {
         }
     }
 
+    @Override
+    public boolean updateChannels(String[] channels) {
+        // Telegram chats are not joined by the bot, there is nothing to update
+        return true;
+    }
+
     @Override
     public void close() throws Exception {
+        if (null != session && session.isRunning())
+            session.stop();
+        if (null != webhookPath) {
+            TelegramWebhookServer.unregister(webhookPort, webhookPath);
+            // Otherwise Telegram keeps pushing to nobody, and polling is refused
+            try {
+                callWebhookMethod("deleteWebhook", Collections.emptyList());
+            } catch (TelegramApiException | IOException e) {
+                System.err.println(String.format("Failed to delete the webhook of '%s'.", botId));
+                e.printStackTrace();
+            }
+            webhookPath = null;
+        }
+        if (null != downloader)
+            downloader.close();
+        if (null != dispatcher)
+            dispatcher.close();
+        if (null != users)
+            users.close();
+        if (null != mediaCache)
+            mediaCache.clear();
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import messages.AttachmentPayload;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.*;
+
+/**
+ * Downloads the media of a bot on a bounded pool of threads.
+ * Every bot shares the same pool of keep-alive connections to Telegram.
+ */
+final class TelegramDownloader implements AutoCloseable {
+    private static final int MAX_CONNECTIONS = 32;
+    private static final int QUEUE_CAPACITY = 100;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private static final CloseableHttpClient httpClient;
+
+    static {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .build();
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param callerRuns true to run the downloads on the caller when too many are waiting, which slows
+     *                   the updates down. Otherwise they are rejected
+     */
+    TelegramDownloader(String name, int threads, boolean callerRuns) {
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-download");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                callerRuns ? new ThreadPoolExecutor.CallerRunsPolicy() : new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    static CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    static AttachmentPayload download(String url) throws IOException {
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet(url))) {
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            if (200 != status) {
+                EntityUtils.consumeQuietly(entity);
+                if (404 == status)
+                    throw new FileNotFoundException(url);
+                throw new IOException(String.format("Download failed with status %d", status));
+            }
+
+            // Consuming the whole entity gives the connection back to the pool
+            try (InputStream in = entity.getContent()) {
+                return AttachmentPayload.from(in);
+            }
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if too many downloads are waiting and they don't run on the caller
+     */
+    <T> CompletableFuture<T> submit(Callable<T> download) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (this.executor.isShutdown()) {
+            result.completeExceptionally(new RejectedExecutionException("Downloader closed"));
+            return result;
+        }
+
+        this.executor.execute(() -> {
+            try {
+                result.complete(download.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        return result;
+    }
+
+    int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                this.executor.shutdownNow();
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Remembers the file_id Telegram gives to the content uploaded by a bot,
+ * so the same content can be sent again without uploading it.
+ * <p>
+ * While some content is being uploaded, the other senders of the same content
+ * wait for its file_id instead of uploading it too.
+ */
+final class TelegramFileIds {
+    private static final int MAX_IDS = 10000;
+    private final Map<String, String> ids = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_IDS;
+        }
+    };
+    private final Map<String, CompletableFuture<Optional<String>>> uploads = new HashMap<>();
+
+    /**
+     * @return the file_id of the content. If it's empty the caller has to upload the content,
+     * then it has to call {@link #uploaded(String, Optional)} whatever the outcome
+     */
+    Optional<String> get(String key) throws InterruptedException {
+        CompletableFuture<Optional<String>> upload;
+        synchronized (this) {
+            String id = this.ids.get(key);
+            if (null != id)
+                return Optional.of(id);
+
+            upload = this.uploads.get(key);
+            if (null == upload) {
+                this.uploads.put(key, new CompletableFuture<>());
+                return Optional.empty();
+            }
+        }
+
+        try {
+            return upload.get();
+        } catch (ExecutionException e) {
+            return Optional.empty();
+        }
+    }
+
+    synchronized void uploaded(String key, Optional<String> fileId) {
+        fileId.ifPresent(id -> this.ids.put(key, id));
+
+        CompletableFuture<Optional<String>> upload = this.uploads.remove(key);
+        if (null != upload)
+            upload.complete(fileId);
+    }
+
+    /**
+     * Forgets a file_id Telegram doesn't accept anymore.
+     */
+    synchronized void remove(String key, String fileId) {
+        this.ids.remove(key, fileId);
+    }
+}
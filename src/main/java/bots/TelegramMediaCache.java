@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import messages.AttachmentPayload;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the media downloaded from Telegram, so forwarded files are downloaded once.
+ * Payloads are kept as they are: small ones in memory, big ones in their temporary file.
+ * The least recently used media are released when the cache exceeds its size.
+ * <p>
+ * The paths returned by GetFile are cached too, since they stay valid for about an hour.
+ */
+final class TelegramMediaCache {
+    private static final long PATH_TTL_MILLIS = TimeUnit.MINUTES.toMillis(50);
+    private static final int MAX_PATHS = 10000;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Triplet<AttachmentPayload, String, String>> media =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Pair<String, Long>> paths =
+            new LinkedHashMap<String, Pair<String, Long>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Pair<String, Long>> eldest) {
+                    return size() > MAX_PATHS;
+                }
+            };
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    TelegramMediaCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return a {@literal Triplet<AttachmentPayload data, String filename, String fileExtension>},
+     * its payload is retained for the caller, who has to close it
+     */
+    synchronized Optional<Triplet<AttachmentPayload, String, String>> get(String fileId) {
+        Triplet<AttachmentPayload, String, String> cached = this.media.get(fileId);
+        if (null == cached) {
+            this.misses++;
+            return Optional.empty();
+        }
+
+        this.hits++;
+        return Optional.of(cached.setAt0(cached.getValue0().retain()));
+    }
+
+    synchronized void put(String fileId, Triplet<AttachmentPayload, String, String> data) {
+        long size = data.getValue0().size();
+        if (size > this.maxBytes)
+            return;
+
+        Triplet<AttachmentPayload, String, String> old = this.media.put(fileId, data.setAt0(data.getValue0().retain()));
+        if (null != old) {
+            this.bytes -= old.getValue0().size();
+            old.getValue0().release();
+        }
+        this.bytes += size;
+
+        Iterator<Triplet<AttachmentPayload, String, String>> iterator = this.media.values().iterator();
+        while (this.bytes > this.maxBytes && iterator.hasNext()) {
+            AttachmentPayload eldest = iterator.next().getValue0();
+            iterator.remove();
+            this.bytes -= eldest.size();
+            eldest.release();
+        }
+    }
+
+    synchronized Optional<String> getPath(String fileId) {
+        Pair<String, Long> path = this.paths.get(fileId);
+        if (null == path || path.getValue1() < System.currentTimeMillis()) {
+            this.paths.remove(fileId);
+            return Optional.empty();
+        }
+
+        return Optional.of(path.getValue0());
+    }
+
+    synchronized void putPath(String fileId, String path) {
+        this.paths.put(fileId, new Pair<>(path, System.currentTimeMillis() + PATH_TTL_MILLIS));
+    }
+
+    synchronized void removePath(String fileId) {
+        this.paths.remove(fileId);
+    }
+
+    synchronized void clear() {
+        this.media.values().forEach(data -> data.getValue0().release());
+        this.media.clear();
+        this.paths.clear();
+        this.bytes = 0;
+    }
+
+    synchronized double getHitRate() {
+        long requests = this.hits + this.misses;
+        return 0 == requests ? 0 : (double) this.hits / requests;
+    }
+
+    synchronized long getSize() {
+        return this.bytes;
+    }
+}
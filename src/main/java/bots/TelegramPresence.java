@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import org.javatuples.Triplet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The users seen in each chat, since Telegram doesn't let bots list the members of a group.
+ * Users who haven't written for a while are forgotten, and so are the least active ones of a chat
+ * with too many of them.
+ */
+final class TelegramPresence implements AutoCloseable {
+    private static final long SWEEP_INTERVAL_MINUTES = 10;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    // Chat id -> user id -> member
+    private final ConcurrentMap<String, ConcurrentMap<Integer, Member>> chats = new ConcurrentHashMap<>();
+    private final long inactivityMillis;
+    private final int maxUsers;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param inactivityMillis users who don't write for longer are forgotten, 0 means never
+     * @param maxUsers         users remembered in a single chat
+     */
+    TelegramPresence(String name, long inactivityMillis, int maxUsers) {
+        this.inactivityMillis = inactivityMillis;
+        this.maxUsers = maxUsers;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MINUTES, SWEEP_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * Records that the user is active in the chat now.
+     */
+    void touch(String chatId, int userId, String name) {
+        // Updated within compute, so the sweep can't drop the chat in the meantime
+        this.chats.compute(chatId, (key, chatMembers) -> {
+            final ConcurrentMap<Integer, Member> members = null == chatMembers
+                    ? new ConcurrentHashMap<>() : chatMembers;
+
+            final Member member = members.get(userId);
+            if (null != member) {
+                member.name = name;
+                member.lastSeen = System.currentTimeMillis();
+                return members;
+            }
+
+            members.put(userId, new Member(name));
+            if (members.size() > this.maxUsers)
+                this.trim(members);
+            return members;
+        });
+    }
+
+    void leave(String chatId, int userId) {
+        final Map<Integer, Member> members = this.chats.get(chatId);
+        if (null != members)
+            members.remove(userId);
+    }
+
+    List<String> getUsers(String chatId) {
+        final Map<Integer, Member> members = this.chats.get(chatId);
+        if (null == members)
+            return new ArrayList<>(0);
+
+        final long expiration = this.getExpiration();
+        final List<String> users = new ArrayList<>(members.size());
+        members.values().forEach(member -> {
+            if (member.lastSeen >= expiration)
+                users.add(member.name);
+        });
+
+        return users;
+    }
+
+    private long getExpiration() {
+        return 0 == this.inactivityMillis ? Long.MIN_VALUE : System.currentTimeMillis() - this.inactivityMillis;
+    }
+
+    private void sweep() {
+        final long expiration = this.getExpiration();
+        this.chats.values().forEach(members -> {
+            members.values().removeIf(member -> member.lastSeen < expiration);
+            if (members.size() > this.maxUsers)
+                this.trim(members);
+        });
+        // Only dropped when still empty, a user may have been added since
+        this.chats.keySet().forEach(chatId -> this.chats.computeIfPresent(chatId,
+                (key, members) -> members.isEmpty() ? null : members));
+    }
+
+    /**
+     * Forgets the least active tenth of the users of a chat which has too many of them,
+     * so the next users can be added without trimming again.
+     */
+    private void trim(Map<Integer, Member> members) {
+        synchronized (members) {
+            final int toRemove = members.size() - this.maxUsers * 9 / 10;
+            if (toRemove <= 0)
+                return;
+
+            // Sorted by a snapshot of lastSeen, which can change while sorting
+            final List<Triplet<Integer, Member, Long>> entries = new ArrayList<>(members.size());
+            members.forEach((userId, member) -> entries.add(new Triplet<>(userId, member, member.lastSeen)));
+            entries.sort(Comparator.comparingLong(Triplet::getValue2));
+            for (int n = 0; n < toRemove && n < entries.size(); n++)
+                members.remove(entries.get(n).getValue0(), entries.get(n).getValue1());
+        }
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.chats.clear();
+    }
+
+    private static final class Member {
+        private volatile String name;
+        private volatile long lastSeen = System.currentTimeMillis();
+
+        private Member(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import org.telegram.telegrambots.api.objects.ResponseParameters;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the requests of a Telegram bot against a limit per chat and a global limit per token.
+ * When Telegram answers 429 the request is retried after the delay it asked for.
+ */
+final class TelegramScheduler {
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final double CHAT_BURST = 3;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private final TokenBucket globalBucket;
+    private final Map<String, ChatBucket> chatBuckets = new ConcurrentHashMap<>();
+    private final double chatMessagesPerSecond;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final TokenBucket.Clock clock;
+    private final AtomicLong lastSweep;
+
+    TelegramScheduler(double globalMessagesPerSecond, double chatMessagesPerMinute) {
+        this(globalMessagesPerSecond, chatMessagesPerMinute, TokenBucket.Clock.SYSTEM);
+    }
+
+    TelegramScheduler(double globalMessagesPerSecond, double chatMessagesPerMinute, TokenBucket.Clock clock) {
+        this.globalBucket = new TokenBucket(globalMessagesPerSecond, globalMessagesPerSecond, clock);
+        this.chatMessagesPerSecond = chatMessagesPerMinute / TimeUnit.MINUTES.toSeconds(1);
+        this.clock = clock;
+        this.lastSweep = new AtomicLong(clock.nanoTime());
+    }
+
+    private static Integer getRetryAfter(TelegramApiRequestException e) {
+        if (null == e.getErrorCode() || TOO_MANY_REQUESTS != e.getErrorCode())
+            return null;
+
+        final ResponseParameters parameters = e.getParameters();
+        return null == parameters || null == parameters.getRetryAfter() ? 1 : parameters.getRetryAfter();
+    }
+
+    <T> T execute(String chatId, Request<T> request) throws TelegramApiException {
+        // Counted as in use, so it isn't dropped while a request waits for it
+        final ChatBucket chatBucket = this.chatBuckets.compute(chatId, (id, bucket) -> {
+            final ChatBucket used = null == bucket
+                    ? new ChatBucket(new TokenBucket(CHAT_BURST, this.chatMessagesPerSecond, this.clock)) : bucket;
+            used.users++;
+            return used;
+        });
+
+        this.queueDepth.incrementAndGet();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                chatBucket.bucket.acquire();
+                this.globalBucket.acquire();
+
+                try {
+                    return request.execute();
+                } catch (TelegramApiRequestException e) {
+                    final Integer retryAfter = TelegramScheduler.getRetryAfter(e);
+                    if (null == retryAfter || MAX_ATTEMPTS <= attempt)
+                        throw e;
+
+                    System.err.println(String.format("Telegram asked to slow down on chat %s, retrying in %d s.",
+                            chatId, retryAfter));
+                    // The limit may be the one of the whole bot, not only of the chat
+                    chatBucket.bucket.pause(retryAfter, TimeUnit.SECONDS);
+                    this.globalBucket.pause(retryAfter, TimeUnit.SECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TelegramApiException("Interrupted while waiting to send", e);
+        } finally {
+            this.queueDepth.decrementAndGet();
+            this.chatBuckets.computeIfPresent(chatId, (id, bucket) -> {
+                bucket.users--;
+                return bucket;
+            });
+            this.sweep();
+        }
+    }
+
+    /**
+     * Drops the buckets of the chats nobody is writing to, at most once per interval.
+     */
+    private void sweep() {
+        final long now = this.clock.nanoTime();
+        final long last = this.lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !this.lastSweep.compareAndSet(last, now))
+            return;
+
+        this.chatBuckets.keySet().forEach(chatId -> this.chatBuckets.computeIfPresent(chatId,
+                (id, bucket) -> 0 == bucket.users && bucket.bucket.isIdle() ? null : bucket));
+    }
+
+    /**
+     * @return the number of requests waiting for their turn or being sent
+     */
+    int getQueueDepth() {
+        return this.queueDepth.get();
+    }
+
+    /**
+     * @return the number of chats with a bucket
+     */
+    int getChatCount() {
+        return this.chatBuckets.size();
+    }
+
+    @FunctionalInterface
+    interface Request<T> {
+        T execute() throws TelegramApiException;
+    }
+
+    private static final class ChatBucket {
+        private final TokenBucket bucket;
+        // Requests using the bucket, guarded by the map
+        private int users;
+
+        private ChatBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
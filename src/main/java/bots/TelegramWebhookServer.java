@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * An HTTP listener receiving the updates pushed by Telegram.
+ * The bots listening on the same port share the same server, each one on its own path.
+ * TLS is expected to be terminated by a reverse proxy in front of it.
+ */
+final class TelegramWebhookServer {
+    private static final Map<Integer, TelegramWebhookServer> servers = new HashMap<>();
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int STOP_DELAY_SECONDS = 1;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private int routes = 0;
+
+    private TelegramWebhookServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        // Updates are only parsed here, they are handled on the bots' lanes
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, String.format("telegram-webhook-%d", port));
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    static synchronized void register(int port, String path, Consumer<Update> onUpdate) throws IOException {
+        TelegramWebhookServer webhookServer = servers.get(port);
+        if (null == webhookServer) {
+            webhookServer = new TelegramWebhookServer(port);
+            servers.put(port, webhookServer);
+        }
+
+        webhookServer.server.createContext(path, exchange -> TelegramWebhookServer.handle(exchange, onUpdate));
+        webhookServer.routes++;
+    }
+
+    static synchronized void unregister(int port, String path) {
+        TelegramWebhookServer webhookServer = servers.get(port);
+        if (null == webhookServer)
+            return;
+
+        webhookServer.server.removeContext(path);
+        if (0 == --webhookServer.routes) {
+            webhookServer.server.stop(STOP_DELAY_SECONDS);
+            webhookServer.executor.shutdown();
+            servers.remove(port);
+        }
+    }
+
+    private static void handle(HttpExchange exchange, Consumer<Update> onUpdate) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Update update;
+            try (InputStream body = exchange.getRequestBody()) {
+                update = mapper.readValue(body, Update.class);
+            } catch (IOException e) {
+                System.err.println("Invalid update received by the webhook.");
+                e.printStackTrace();
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            try {
+                onUpdate.accept(update);
+            } catch (RejectedExecutionException e) {
+                // Telegram sends the update again later
+                System.err.println("Too many updates waiting, one received by the webhook is refused.");
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Error while handling an update received by the webhook.");
+                e.printStackTrace();
+            }
+
+            // Telegram sends the update again unless it is acknowledged
+            exchange.sendResponseHeaders(200, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+}
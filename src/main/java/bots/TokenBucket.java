@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket handing out reservations: callers are told how long to wait
+ * for their token instead of being rejected, so bursts are smoothed out.
+ */
+final class TokenBucket {
+    private final double capacity;
+    private final double tokensPerNano;
+    private final Clock clock;
+    private double tokens;
+    private long lastRefill;
+    private long pausedUntil;
+
+    TokenBucket(double capacity, double tokensPerSecond) {
+        this(capacity, tokensPerSecond, Clock.SYSTEM);
+    }
+
+    TokenBucket(double capacity, double tokensPerSecond, Clock clock) {
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.clock = clock;
+        this.tokens = capacity;
+        this.lastRefill = clock.nanoTime();
+        this.pausedUntil = this.lastRefill;
+    }
+
+    /**
+     * Reserves one token.
+     *
+     * @return nanoseconds to wait before the token can be used
+     */
+    synchronized long reserve() {
+        final long now = this.clock.nanoTime();
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+        this.lastRefill = now;
+        this.tokens -= 1;
+
+        // Rounded up, so the token is there once the wait is over
+        final long refillWait = this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens / this.tokensPerNano);
+        return Math.max(refillWait, this.pausedUntil - now);
+    }
+
+    /**
+     * Stops handing out usable tokens for the given time, e.g. when the server asks to slow down.
+     */
+    synchronized void pause(long duration, TimeUnit unit) {
+        final long until = this.clock.nanoTime() + unit.toNanos(duration);
+        if (until - this.pausedUntil > 0)
+            this.pausedUntil = until;
+        this.tokens = Math.min(this.tokens, 0);
+    }
+
+    /**
+     * @return true if the bucket is full and not paused, so dropping it changes nothing
+     */
+    synchronized boolean isIdle() {
+        final long now = this.clock.nanoTime();
+        return this.pausedUntil - now <= 0
+                && this.tokens + (now - this.lastRefill) * this.tokensPerNano >= this.capacity;
+    }
+
+    void acquire() throws InterruptedException {
+        final long wait = this.reserve();
+        if (wait > 0)
+            this.clock.sleep(wait);
+    }
+
+    /**
+     * The time the buckets are refilled by, replaced by the tests.
+     */
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public void sleep(long nanos) throws InterruptedException {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+        };
+
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Handles the updates of a bot on a fixed number of lanes, each one a single thread.
+ * A chat is always handled by the same lane, so its tasks run in the order they were
+ * submitted, each one once the previous task of the chat and its own input are done.
+ * Chats on different lanes are handled in parallel.
+ */
+final class UpdateDispatcher implements AutoCloseable {
+    static final CompletableFuture<Void> READY = CompletableFuture.completedFuture(null);
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private final Map<Long, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor[] lanes;
+
+    UpdateDispatcher(String name, int lanesCount) {
+        this.lanes = new ThreadPoolExecutor[Math.max(1, lanesCount)];
+        for (int n = 0; n < this.lanes.length; n++) {
+            final String threadName = String.format("%s-lane-%d", name, n);
+            this.lanes[n] = new ThreadPoolExecutor(1, 1,
+                    0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+    }
+
+    /**
+     * The task runs even if the input failed, it has to check the input by itself.
+     */
+    void submit(long chatId, CompletableFuture<?> input, Runnable task) {
+        final Executor lane = this.lanes[Math.floorMod(Long.hashCode(chatId), this.lanes.length)];
+
+        final CompletableFuture<Void> tail = this.tails.compute(chatId, (id, previous) -> {
+            CompletableFuture<?> ready = null == previous ? input : CompletableFuture.allOf(previous, input);
+            return ready.handle((result, e) -> null)
+                    .thenRunAsync(() -> {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            System.err.println(String.format("Error while handling a message from chat %d.", id));
+                            e.printStackTrace();
+                        }
+                    }, lane);
+        });
+
+        tail.whenComplete((result, e) -> this.tails.remove(chatId, tail));
+    }
+
+    /**
+     * @return the number of tasks queued on each lane, the ones waiting for their input excluded
+     */
+    int[] getLaneBacklogs() {
+        return Arrays.stream(this.lanes)
+                .mapToInt(lane -> lane.getQueue().size())
+                .toArray();
+    }
+
+    @Override
+    public void close() {
+        for (ThreadPoolExecutor lane : this.lanes)
+            lane.shutdown();
+        try {
+            for (ThreadPoolExecutor lane : this.lanes) {
+                if (!lane.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                    lane.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            for (ThreadPoolExecutor lane : this.lanes)
+                lane.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
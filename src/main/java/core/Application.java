@@ -19,18 +19,27 @@ package core;
 
 import bots.Bot;
 import bots.TelegramBot;
+import messages.AttachmentPayload;
+import models.Database;
 import models.FileStorage;
+import models.MappedMessageStore;
+import models.MessageStore;
 import models.MessagesModel;
+import models.SqliteMessageStore;
+import org.javatuples.Triplet;
 
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
 public final class Application {
-    private static Connection database;
+    private static MessageStore messageStore;
+    private static final Map<String, Bot> bots = new LinkedHashMap<>();
+    private static Config conf;
+    private static ConfigWatcher configWatcher;
 
     public static void main(String[] args) throws InterruptedException {
         // TODO: find a way to replace this temporary fix
@@ -47,52 +56,142 @@ public final class Application {
 
         Map<String, Object> channelsConfig = conf.getChannels();
 
-        Application.initDatabase(conf.getDbUri());
+        Application.initDatabase(conf);
 
         Map<String, String> webserverConfig = conf.getWebserverConfig();
         FileStorage.init(webserverConfig);
+        AttachmentPayload.setSpillThreshold(conf.getAttachmentSpillThreshold());
+        Application.manageTemplates(conf);
+        MembershipCache.configure(conf.getUsersCacheTtl(), conf.getUsersTimeout());
 
-        Map<String, Bot> bots = initBots(conf.getBots(), channelsConfig);
-        manageBridges(bots, channelsConfig, conf.getBridges());
+        synchronized (Application.class) {
+            Application.conf = conf;
+            conf.getBots().forEach((key, value) -> Application.initBot(key, value, channelsConfig)
+                    .ifPresent(bot -> Application.bots.put(key, bot)));
+            manageBridges(Application.bots, channelsConfig, conf.getBridges());
+        }
 
-        handleShutdown(bots);
+        try {
+            Application.configWatcher = new ConfigWatcher(conf.getFileName(), Application::reload);
+            Application.configWatcher.start();
+        } catch (IOException e) {
+            System.err.println("Config file can't be watched, changes will be applied on restart.");
+            e.printStackTrace();
+        }
+
+        handleShutdown();
     }
 
-    private static void initDatabase(String dbUri) {
+    private static void initDatabase(Config conf) {
+        final long retention = TimeUnit.DAYS.toSeconds(conf.getRetentionDays());
         try {
-            Application.database = DriverManager.getConnection(dbUri);
-            MessagesModel.init(Application.database);
-        } catch (SQLException e) {
+            if (Config.MAPPED_FILE_STORE.equals(conf.getMessageStore()))
+                Application.messageStore = new MappedMessageStore(Paths.get(conf.getMessageStorePath()), retention);
+            else
+                Application.messageStore = new SqliteMessageStore(
+                        new Database(conf.getDbUri(), conf.getDbReaders()), retention);
+
+            MessagesModel.init(Application.messageStore, conf.getEditsCacheSize(), conf.getEditsCacheTtl(),
+                    retention);
+        } catch (SQLException | IOException e) {
             System.err.println("Error loading the database");
             e.printStackTrace();
         }
     }
 
-    private static Map<String, Bot> initBots(Map<String, Object> botsConfig,
-                                             Map<String, Object> channelsConfig) {
-        int AVG_BOTS_N = 3;
-        Map<String, Bot> bots = new LinkedHashMap<>(AVG_BOTS_N);
-        botsConfig.forEach((key, value) -> {
-            Map<String, String> botConfig = (Map<String, String>) value;
+    /**
+     * Applies the differences between the running config and the one on disk.
+     * Bots whose settings haven't changed keep their connections.
+     */
+    private static synchronized void reload() {
+        Config newConf = new Config(Application.conf.getFileName());
+        try {
+            newConf.load();
+        } catch (IOException e) {
+            System.err.println(String.format("Error while reloading config file: %s. The old one is kept.",
+                    e.getMessage()));
+            return;
+        }
+
+        if (!Application.conf.hasSameStorage(newConf))
+            System.err.println("Database and cache settings will be applied on restart.");
+
+        Map<String, Object> oldChannelsConfig = Application.conf.getChannels();
+        Map<String, Object> newChannelsConfig = newConf.getChannels();
+        Map<String, Object> oldBotsConfig = Application.conf.getBots();
+        Map<String, Object> newBotsConfig = newConf.getBots();
+
+        List<Bot> stoppedBots = new LinkedList<>();
+        Iterator<Entry<String, Bot>> iterator = Application.bots.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<String, Bot> entry = iterator.next();
+            Object newBotConfig = newBotsConfig.get(entry.getKey());
+
+            boolean keep = null != newBotConfig && newBotConfig.equals(oldBotsConfig.get(entry.getKey()));
+            if (keep) {
+                String[] oldChannels = Application.getChannelsName(entry.getKey(), oldChannelsConfig);
+                String[] newChannels = Application.getChannelsName(entry.getKey(), newChannelsConfig);
+                if (!Arrays.equals(oldChannels, newChannels))
+                    keep = entry.getValue().updateChannels(newChannels);
+            }
+
+            if (!keep) {
+                stoppedBots.add(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        // Nothing has to be routed to the stopped bots while they are closed
+        manageBridges(Application.bots, newChannelsConfig, newConf.getBridges());
+        stoppedBots.forEach(bot -> {
+            BotsController.closeOutboundQueues(bot);
+            MembershipCache.forget(bot);
             try {
-                Object newClass = Class.forName(Bot.class.getPackage().getName() + '.' + botConfig.get(Config.BOT_TYPE_KEY)).newInstance();
-                if (newClass instanceof Bot) {
-                    Bot bot = (Bot) newClass;
-                    String[] channels = Application.getChannelsName(key, channelsConfig);
-                    if (bot.init(key, botConfig, channels)) {
-                        bots.put(key, bot);
-                        System.out.println(String.format("Bot '%s' initialized.", key));
-                    } else
-                        System.err.println(String.format("Failed to init '%s' bot.", key));
-                } else
-                    System.err.println(String.format("'%s' is not a valid bot.", botConfig.get(Config.BOT_TYPE_KEY)));
+                bot.close();
+                System.out.println(String.format("Bot '%s' stopped.", bot.getId()));
             } catch (Exception e) {
-                System.err.println(String.format("Class of type '%s' can't be instantiated.", botConfig.get(Config.BOT_TYPE_KEY)));
+                System.err.println(String.format("Error while stopping '%s' bot.", bot.getId()));
                 e.printStackTrace();
             }
         });
 
-        return bots;
+        newBotsConfig.forEach((key, value) -> {
+            if (!Application.bots.containsKey(key))
+                Application.initBot(key, value, newChannelsConfig)
+                        .ifPresent(bot -> Application.bots.put(key, bot));
+        });
+        manageBridges(Application.bots, newChannelsConfig, newConf.getBridges());
+
+        FileStorage.init(newConf.getWebserverConfig());
+        AttachmentPayload.setSpillThreshold(newConf.getAttachmentSpillThreshold());
+        Application.manageTemplates(newConf);
+        MembershipCache.configure(newConf.getUsersCacheTtl(), newConf.getUsersTimeout());
+
+        Application.conf = newConf;
+        System.out.println("Config file reloaded.");
+    }
+
+    private static Optional<Bot> initBot(String key, Object value,
+                                         Map<String, Object> channelsConfig) {
+        Map<String, String> botConfig = (Map<String, String>) value;
+        try {
+            Object newClass = Class.forName(Bot.class.getPackage().getName() + '.' + botConfig.get(Config.BOT_TYPE_KEY)).newInstance();
+            if (newClass instanceof Bot) {
+                Bot bot = (Bot) newClass;
+                String[] channels = Application.getChannelsName(key, channelsConfig);
+                if (bot.init(key, botConfig, channels)) {
+                    System.out.println(String.format("Bot '%s' initialized.", key));
+                    return Optional.of(bot);
+                } else
+                    System.err.println(String.format("Failed to init '%s' bot.", key));
+            } else
+                System.err.println(String.format("'%s' is not a valid bot.", botConfig.get(Config.BOT_TYPE_KEY)));
+        } catch (Exception e) {
+            System.err.println(String.format("Class of type '%s' can't be instantiated.", botConfig.get(Config.BOT_TYPE_KEY)));
+            e.printStackTrace();
+        }
+
+        return Optional.empty();
     }
 
     private static String[] getChannelsName(String botName,
@@ -112,24 +211,63 @@ public final class Application {
     private static void manageBridges(Map<String, Bot> bots,
                                       Map<String, Object> channelsConfig,
                                       Iterable<ArrayList<String>> bridgesConfig) {
+        Map<String, List<Triplet<Bot, String, String>>> bridges = new HashMap<>(bots.size());
+        bots.keySet().forEach(botId -> bridges.put(botId, new ArrayList<>()));
+
         bridgesConfig.forEach(bridgeConfig -> bridgeConfig.forEach(fromChannelId -> {
             Optional<String> fromBotId = Application.channelToBotId(fromChannelId, channelsConfig);
             if (fromBotId.isPresent() && bots.containsKey(fromBotId.get())) {
-                Bot fromBot = bots.get(fromBotId.get());
+                List<Triplet<Bot, String, String>> fromBridges = bridges.get(fromBotId.get());
 
                 bridgeConfig.forEach(toChannelId -> {
                     Optional<String> toBotId = Application.channelToBotId(toChannelId, channelsConfig);
-                    toBotId.ifPresent(id -> {
+                    toBotId.filter(bots::containsKey).ifPresent(id -> {
                         Bot toBot = bots.get(id);
                         Map<String, String> toChannelConfig = (Map<String, String>) channelsConfig.get(toChannelId);
                         Map<String, String> fromChannelConfig = (Map<String, String>) channelsConfig.get(fromChannelId);
 
                         if (!fromChannelId.equals(toChannelId))
-                            fromBot.addBridge(toBot, toChannelConfig.get(Config.NAME_KEY), fromChannelConfig.get(Config.NAME_KEY));
+                            fromBridges.add(new Triplet<>(toBot, toChannelConfig.get(Config.NAME_KEY),
+                                    fromChannelConfig.get(Config.NAME_KEY)));
                     });
                 });
             }
         }));
+
+        // Every routing table is swapped at once, so messages never see half a config
+        bots.forEach((botId, bot) -> bot.setBridges(bridges.get(botId)));
+    }
+
+    /**
+     * Compiles the message formats of the config. Invalid formats are replaced by the default one
+     */
+    private static void manageTemplates(Config conf) {
+        MessageTemplate defaultTemplate = Application.compileTemplate(conf.getMessageFormat(), "message-format")
+                .orElseGet(() -> MessageTemplate.compile(MessageTemplate.DEFAULT_FORMAT));
+
+        Map<String, Map<String, MessageTemplate>> templates = new HashMap<>();
+        conf.getChannels().forEach((channelId, value) -> {
+            Map<String, Object> channelConfig = (Map<String, Object>) value;
+            Object format = channelConfig.get(Config.FORMAT_KEY);
+            if (null == format)
+                return;
+
+            Application.compileTemplate(format.toString(), channelId).ifPresent(template ->
+                    templates.computeIfAbsent(channelConfig.get(Config.BOT_KEY).toString(), botId -> new HashMap<>())
+                            .put(channelConfig.get(Config.NAME_KEY).toString(), template));
+        });
+
+        MessageTemplate.setTemplates(defaultTemplate, templates);
+    }
+
+    private static Optional<MessageTemplate> compileTemplate(String format, String name) {
+        try {
+            return Optional.of(MessageTemplate.compile(format));
+        } catch (IllegalArgumentException e) {
+            System.err.println(String.format("Invalid format of '%s': %s. The default one is used.",
+                    name, e.getMessage()));
+            return Optional.empty();
+        }
     }
 
     private static Optional<String> channelToBotId(String channelId,
@@ -144,24 +282,34 @@ public final class Application {
         return Optional.empty();
     }
 
-    private static void handleShutdown(Map<String, Bot> bots) throws InterruptedException {
+    private static void handleShutdown() throws InterruptedException {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (null != Application.configWatcher)
+                    Application.configWatcher.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            // Flush the pending deliveries before anything gets closed
+            BotsController.closeOutboundQueues();
+
             try {
                 MessagesModel.clean();
-                Application.database.close();
-            } catch (SQLException e) {
+                Application.messageStore.close();
+            } catch (Exception e) {
                 e.printStackTrace();
             }
 
-            bots.entrySet().stream()
-                    .map(Entry::getValue)
-                    .forEach(bot -> {
-                        try {
-                            bot.close();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    });
+            synchronized (Application.class) {
+                Application.bots.values().forEach(bot -> {
+                    try {
+                        bot.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
 
             System.out.println("Application terminated");
         }));
@@ -18,89 +18,212 @@
 package core;
 
 import bots.Bot;
+import messages.AttachmentPayload;
 import messages.BotDocumentMessage;
 import messages.BotMessage;
 import messages.BotTextMessage;
+import messages.ImageVariants;
 import models.MessageBuilder;
 import models.MessagesModel;
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
 import org.javatuples.Triplet;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 public class BotsController {
     public static final String EVERY_CHANNEL = "*";
+    private static final int OUTBOUND_QUEUE_CAPACITY = 1000;
 
-    // Triplet<Bot bot, String channelTo, String channelFrom>
-    private final List<Triplet<Bot, String, String>> sendToList = new LinkedList<>();
+    // Shared among every controller, so each destination is served by one worker only
+    private static final Map<Pair<String, String>, OutboundQueue> outboundQueues = new ConcurrentHashMap<>();
 
-    public static String messageFormatter(Bot botFrom,
-                                          String channelFrom,
-                                          String nicknameFrom,
-                                          Optional<String> message) {
+    private volatile RoutingTable routes = RoutingTable.EMPTY;
 
-        final String botClassName = botFrom.getClass().getSimpleName();
-        final String channelType = botClassName.substring(0, botClassName.length() - "Bot".length());
+    public static void closeOutboundQueues() {
+        // The edits held are delivered too
+        EditDebouncer.flush();
+        outboundQueues.values().forEach(OutboundQueue::close);
+        outboundQueues.clear();
+    }
+
+    /**
+     * Delivers what is still queued for the bot and releases its queues.
+     */
+    public static void closeOutboundQueues(Bot bot) {
+        EditDebouncer.flush(bot);
+        outboundQueues.entrySet().removeIf(entry -> {
+            if (!entry.getKey().getValue0().equals(bot.getId()))
+                return false;
+
+            entry.getValue().close();
+            return true;
+        });
+    }
+
+    private static OutboundQueue getOutboundQueue(Bot bot, String channelTo) {
+        return outboundQueues.computeIfAbsent(Pair.with(bot.getId(), channelTo),
+                key -> new OutboundQueue(String.format("outbound-%s-%s", key.getValue0(), key.getValue1()),
+                        OUTBOUND_QUEUE_CAPACITY));
+    }
+
+    private static boolean enqueue(Bot bot, String channelTo, Runnable delivery) {
+        final OutboundQueue queue = BotsController.getOutboundQueue(bot, channelTo);
+        if (queue.submit(delivery))
+            return true;
 
-        return message.map(s -> String.format("%s (%s): %s",
-                nicknameFrom, channelType, s))
-                .orElseGet(() -> String.format("%s (%s)",
-                        nicknameFrom, channelType));
+        System.err.println(String.format("Outbound queue '%s' is full, message dropped.", queue.getName()));
+        return false;
     }
 
-    public void addBridge(Bot bot, String channelTo, String channelFrom) {
-        this.sendToList.add(Triplet.with(bot, channelTo, channelFrom));
+    /**
+     * @param bridges a list of {@literal Triplet<Bot bot, String channelTo, String channelFrom>}
+     */
+    public synchronized void setBridges(List<Triplet<Bot, String, String>> bridges) {
+        RoutingTable newRoutes = RoutingTable.EMPTY;
+        for (Triplet<Bot, String, String> bridge : bridges)
+            newRoutes = newRoutes.with(bridge.getValue2(), new Destination(bridge.getValue0(), bridge.getValue1()));
+
+        this.routes = newRoutes;
     }
 
+    /**
+     * Edits the copies of a message. Close edits of the same message are sent once, see {@link Bot#getEditDelay()}
+     */
     public void editMessage(BotTextMessage messageText, String channelFrom, String messageId) {
-        this.sendToList.stream()
-                .filter(sendTo -> sendTo.getValue2().equals(channelFrom) || channelFrom.equals(BotsController.EVERY_CHANNEL))
-                .forEach(sendTo -> {
-                    Optional<String> message = MessagesModel.getChildMessage(messageText.getBotFrom().getId(),
-                            messageText.getChannelFrom(), messageId,
-                            sendTo.getValue0().getId(), sendTo.getValue1());
-                    message.ifPresent(id -> sendTo.getValue0().editMessage(messageText, sendTo.getValue1(), id));
-                });
+        final String messageKey = String.join("\n", messageText.getBotFrom().getId(),
+                messageText.getChannelFrom(), messageId);
+        for (Destination sendTo : this.routes.get(channelFrom)) {
+            EditDebouncer.submit(sendTo, messageKey, messageText, edit ->
+                    BotsController.enqueue(sendTo.getBot(), sendTo.getChannel(), () -> {
+                        Optional<String> message = MessagesModel.getChildMessage(edit.getBotFrom().getId(),
+                                edit.getChannelFrom(), messageId,
+                                sendTo.getBot().getId(), sendTo.getChannel());
+                        message.ifPresent(id -> sendTo.getBot().editMessage(edit, sendTo.getChannel(), id));
+                    }));
+        }
     }
 
     public void sendMessage(BotMessage message, String channelFrom,
                             Optional<String> messageId) {
+        if (!(message instanceof BotTextMessage)) {
+            System.err.println("Error, message type not valid.");
+            return;
+        }
+
+        final Destination[] sendTo = this.routes.get(channelFrom);
+        if (0 == sendTo.length)
+            return;
+
+        // Each copy can be edited as soon as it's delivered, while the others are still queued
         final MessageBuilder mb = messageId.map(id -> new MessageBuilder(message.getBotFrom().getId(), message.getChannelFrom(),
-                id)).orElse(null);
+                id, sendTo.length)).orElse(null);
+
+        // Every delivery holds its own reference, so the payload outlives the caller
+        final AttachmentPayload payload = message instanceof BotDocumentMessage
+                ? ((BotDocumentMessage) message).getDoc() : null;
+
+        // The images are resized for the destinations that want them while the others are served
+        if (message instanceof BotDocumentMessage) {
+            Arrays.stream(sendTo)
+                    .map(destination -> destination.getBot().getImageVariant())
+                    .distinct()
+                    .forEach(variant -> ImageVariants.prepare((BotDocumentMessage) message, variant));
+        }
 
-        this.sendToList.stream()
-                .filter(sendTo -> sendTo.getValue2().equals(channelFrom) || channelFrom.equals(BotsController.EVERY_CHANNEL))
-                .forEach(sendTo -> {
+        for (Destination destination : sendTo) {
+            final Bot botTo = destination.getBot();
+            final String channelTo = destination.getChannel();
+
+            if (null != payload)
+                payload.retain();
+
+            final boolean enqueued = BotsController.enqueue(botTo, channelTo, () -> {
+                String copyId = null;
+                try {
                     Optional<String> msgId;
                     if (message instanceof BotDocumentMessage)
-                        msgId = sendTo.getValue0().sendMessage(
-                                (BotDocumentMessage) message, sendTo.getValue1());
-                    else if (message instanceof BotTextMessage)
-                        msgId = sendTo.getValue0().sendMessage(
-                                (BotTextMessage) message, sendTo.getValue1());
-                    else {
-                        System.err.println("Error, message type not valid.");
-                        return;
-                    }
-
-                    messageId.ifPresent(s -> mb.append(sendTo.getValue0().getId(),
-                            sendTo.getValue1(), msgId.orElse(UUID.randomUUID().toString())));
-                });
-
-        messageId.ifPresent(s -> mb.saveHistory());
+                        msgId = botTo.sendMessage(BotsController.getImageVariant((BotDocumentMessage) message, botTo),
+                                channelTo);
+                    else
+                        msgId = botTo.sendMessage((BotTextMessage) message, channelTo);
+                    copyId = msgId.orElse(UUID.randomUUID().toString());
+                } finally {
+                    if (null != payload)
+                        payload.release();
+
+                    // The copies are stored once every destination is accounted for, failed ones included
+                    if (null != mb && null != copyId)
+                        mb.append(botTo.getId(), channelTo, copyId);
+                    else if (null != mb)
+                        mb.skip();
+                }
+            });
+
+            if (!enqueued) {
+                if (null != payload)
+                    payload.release();
+                if (null != mb)
+                    mb.skip();
+            }
+        }
+    }
+
+    private static BotDocumentMessage getImageVariant(BotDocumentMessage message, Bot botTo) {
+        try {
+            return ImageVariants.get(message, botTo.getImageVariant());
+        } catch (IOException e) {
+            System.err.println("Error while resizing an image, the original is sent.");
+            e.printStackTrace();
+            return message;
+        }
     }
 
     /**
-     * @return a list of {@literal Triplet<Bot bot, String channel, List<String> nicknames>}
+     * Asks the users of the bridged channels to their bots in parallel.
+     * A bot which doesn't answer in time gets its last users known, marked as stale.
+     *
+     * @return a {@literal Quartet<Bot bot, String channel, List<String> users, Boolean stale>} for each channel
      */
-    public List<Triplet<Bot, String, List<String>>> askForUsers(String channelFrom) {
-        return this.sendToList.stream()
-                .filter(askTo -> askTo.getValue2().equals(channelFrom))
-                .map(askTo -> new Triplet<>(askTo.getValue0(), askTo.getValue1(),
-                                askTo.getValue0().getUsers(askTo.getValue1())))
+    public List<Quartet<Bot, String, List<String>, Boolean>> askForUsers(String channelFrom) {
+        final Destination[] destinations = this.routes.getBridged(channelFrom);
+        final List<CompletableFuture<List<String>>> lookups = Arrays.stream(destinations)
+                .map(MembershipCache::get)
                 .collect(Collectors.toList());
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MembershipCache.getTimeoutMillis());
+        final List<Quartet<Bot, String, List<String>, Boolean>> users = new ArrayList<>(destinations.length);
+        for (int n = 0; n < destinations.length; n++) {
+            final Destination askTo = destinations[n];
+            List<String> channelUsers;
+            boolean stale = false;
+            try {
+                channelUsers = lookups.get(n).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                channelUsers = MembershipCache.getLast(askTo).orElse(Collections.emptyList());
+                stale = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                channelUsers = MembershipCache.getLast(askTo).orElse(Collections.emptyList());
+                stale = true;
+            }
+
+            users.add(new Quartet<>(askTo.getBot(), askTo.getChannel(), channelUsers, stale));
+        }
+
+        return users;
     }
 }
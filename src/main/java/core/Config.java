@@ -17,6 +17,7 @@
 
 package core;
 
+import messages.AttachmentPayload;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.FileInputStream;
@@ -30,9 +31,12 @@ import java.util.Map.Entry;
 
 class Config {
     public static final String DEFAULT_FILENAME = "/etc/brooklyn/conf.yml";
+    public static final String SQLITE_STORE = "sqlite";
+    public static final String MAPPED_FILE_STORE = "mapped-file";
     public static final String BOT_TYPE_KEY = "type";
     public static final String NAME_KEY = "name";
     public static final String BOT_KEY = "bot";
+    public static final String FORMAT_KEY = "format";
     private static final String BOTS_KEY = "bots";
     private static final String CHANNELS_KEY = "channels";
     private static final String BRIDGES_KEY = "bridges";
@@ -40,12 +44,35 @@ class Config {
     private static final String CONTENT_FOLDER_KEY = "content-folder";
     private static final String BASE_URL_KEY = "base-url";
     private static final String DATABASE_KEY = "db-uri";
+    private static final String DATABASE_READERS_KEY = "db-readers";
+    private static final int DEFAULT_DATABASE_READERS = 4;
+    private static final String EDITS_CACHE_SIZE_KEY = "edits-cache-size";
+    private static final int DEFAULT_EDITS_CACHE_SIZE = 10000;
+    private static final String EDITS_CACHE_TTL_KEY = "edits-cache-ttl";
+    private static final int DEFAULT_EDITS_CACHE_TTL = 3600;
+    private static final String RETENTION_DAYS_KEY = "retention-days";
+    private static final String MESSAGE_STORE_KEY = "message-store";
+    private static final String MESSAGE_STORE_PATH_KEY = "message-store-path";
+    private static final String ATTACHMENT_SPILL_THRESHOLD_KEY = "attachment-spill-threshold";
+    private static final String MESSAGE_FORMAT_KEY = "message-format";
+    private static final String USERS_CACHE_TTL_KEY = "users-cache-ttl";
+    private static final String USERS_TIMEOUT_KEY = "users-timeout-ms";
     private final String fileName;
     private Map<String, Object> bots;
     private Map<String, Object> channels;
     private ArrayList<ArrayList<String>> bridges;
     private Map<String, String> webserver = new HashMap<>(0);
     private String dbUri = "";
+    private int dbReaders = DEFAULT_DATABASE_READERS;
+    private int editsCacheSize = DEFAULT_EDITS_CACHE_SIZE;
+    private int editsCacheTtl = DEFAULT_EDITS_CACHE_TTL;
+    private int retentionDays = 0;
+    private String messageStore = SQLITE_STORE;
+    private String messageStorePath = "";
+    private int attachmentSpillThreshold = AttachmentPayload.DEFAULT_SPILL_THRESHOLD;
+    private String messageFormat = MessageTemplate.DEFAULT_FORMAT;
+    private int usersCacheTtl = MembershipCache.DEFAULT_TTL_SECONDS;
+    private int usersTimeout = MembershipCache.DEFAULT_TIMEOUT_MILLIS;
 
     Config(String configFileName) {
         this.bots = new LinkedHashMap<>(0);
@@ -86,6 +113,14 @@ class Config {
         return true;
     }
 
+    private static int getInt(Map<String, ?> settings, String key, int defaultValue) {
+        final Object value = settings.get(key);
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+
+        return defaultValue;
+    }
+
     private static boolean isValidWebserverConfig(Map<String, String> webserver) {
         return webserver.containsKey(Config.CONTENT_FOLDER_KEY) &&
                 webserver.containsKey(Config.BASE_URL_KEY);
@@ -115,6 +150,29 @@ class Config {
         this.channels = (Map<String, Object>) settings.get(Config.CHANNELS_KEY);
         this.bridges = (ArrayList) settings.get(Config.BRIDGES_KEY);
         this.webserver = (Map<String, String>) settings.get(Config.WEBSERVER_KEY);
+        this.dbReaders = Config.getInt(settings, Config.DATABASE_READERS_KEY, DEFAULT_DATABASE_READERS);
+        this.editsCacheSize = Config.getInt(settings, Config.EDITS_CACHE_SIZE_KEY, DEFAULT_EDITS_CACHE_SIZE);
+        this.editsCacheTtl = Config.getInt(settings, Config.EDITS_CACHE_TTL_KEY, DEFAULT_EDITS_CACHE_TTL);
+        this.retentionDays = Config.getInt(settings, Config.RETENTION_DAYS_KEY, 0);
+        this.attachmentSpillThreshold = Config.getInt(settings, Config.ATTACHMENT_SPILL_THRESHOLD_KEY,
+                AttachmentPayload.DEFAULT_SPILL_THRESHOLD);
+        this.usersCacheTtl = Config.getInt(settings, Config.USERS_CACHE_TTL_KEY, MembershipCache.DEFAULT_TTL_SECONDS);
+        this.usersTimeout = Config.getInt(settings, Config.USERS_TIMEOUT_KEY, MembershipCache.DEFAULT_TIMEOUT_MILLIS);
+        this.messageFormat = settings.getOrDefault(Config.MESSAGE_FORMAT_KEY, MessageTemplate.DEFAULT_FORMAT).toString();
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return true if both configs share the settings that can only be applied on startup
+     */
+    public boolean hasSameStorage(Config other) {
+        return dbUri.equals(other.dbUri) && dbReaders == other.dbReaders
+                && editsCacheSize == other.editsCacheSize && editsCacheTtl == other.editsCacheTtl
+                && retentionDays == other.retentionDays && messageStore.equals(other.messageStore)
+                && messageStorePath.equals(other.messageStorePath);
     }
 
     public Map<String, Object> getBots() {
@@ -137,12 +195,77 @@ class Config {
         return this.dbUri;
     }
 
+    public int getDbReaders() {
+        return this.dbReaders;
+    }
+
+    public int getEditsCacheSize() {
+        return this.editsCacheSize;
+    }
+
+    /**
+     * @return seconds a message is kept in the edits cache
+     */
+    public int getEditsCacheTtl() {
+        return this.editsCacheTtl;
+    }
+
+    /**
+     * @return days the messages mappings are kept, 0 means forever
+     */
+    public int getRetentionDays() {
+        return this.retentionDays;
+    }
+
+    public String getMessageStore() {
+        return this.messageStore;
+    }
+
+    public int getAttachmentSpillThreshold() {
+        return attachmentSpillThreshold;
+    }
+
+    /**
+     * @return the format of the messages sent to the channels without their own
+     */
+    public String getMessageFormat() {
+        return this.messageFormat;
+    }
+
+    /**
+     * @return seconds the users of a channel are kept
+     */
+    public int getUsersCacheTtl() {
+        return this.usersCacheTtl;
+    }
+
+    /**
+     * @return milliseconds a bot has to list the users of a channel
+     */
+    public int getUsersTimeout() {
+        return this.usersTimeout;
+    }
+
+    public String getMessageStorePath() {
+        return this.messageStorePath;
+    }
+
     private boolean isValid(Map<String, Object> settings) {
         if (!settings.containsKey(Config.BOTS_KEY) ||
                 !settings.containsKey(Config.CHANNELS_KEY) ||
                 !settings.containsKey(Config.BRIDGES_KEY) ||
-                !settings.containsKey(Config.WEBSERVER_KEY) ||
-                !settings.containsKey(Config.DATABASE_KEY))
+                !settings.containsKey(Config.WEBSERVER_KEY))
+            return false;
+
+        messageStore = settings.getOrDefault(Config.MESSAGE_STORE_KEY, Config.SQLITE_STORE).toString();
+        if (Config.SQLITE_STORE.equals(messageStore)) {
+            if (!settings.containsKey(Config.DATABASE_KEY))
+                return false;
+        } else if (Config.MAPPED_FILE_STORE.equals(messageStore)) {
+            if (!settings.containsKey(Config.MESSAGE_STORE_PATH_KEY))
+                return false;
+            messageStorePath = settings.get(Config.MESSAGE_STORE_PATH_KEY).toString();
+        } else
             return false;
 
         if (!(settings.get(Config.BOTS_KEY) instanceof Map) ||
@@ -155,7 +278,7 @@ class Config {
         Map<String, Object> bots = (Map<String, Object>) settings.get(Config.BOTS_KEY);
         ArrayList bridges = (ArrayList) settings.get(Config.BRIDGES_KEY);
         Map<String, String> webserver = (Map<String, String>) settings.get(Config.WEBSERVER_KEY);
-        dbUri = (String) settings.get(Config.DATABASE_KEY);
+        dbUri = (String) settings.getOrDefault(Config.DATABASE_KEY, "");
 
         if (!Config.isValidBots(bots))
             return false;
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the config file and runs a callback once it has stopped changing.
+ * Editors often write a file in several steps, so events are debounced.
+ */
+final class ConfigWatcher implements AutoCloseable {
+    private static final long DEBOUNCE_MILLIS = 500;
+    private final WatchService watchService;
+    private final Path file;
+    private final Runnable onChange;
+    private final Thread thread;
+
+    ConfigWatcher(String fileName, Runnable onChange) throws IOException {
+        this.file = Paths.get(fileName).toAbsolutePath();
+        this.onChange = onChange;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        // Directories are watched instead of files, editors may replace the file entirely
+        this.file.getParent().register(this.watchService,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+
+        this.thread = new Thread(this::watch, "config-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = this.watchService.take();
+                boolean changed = this.pollChanged(key);
+
+                // Swallow the rest of the burst
+                while (changed) {
+                    key = this.watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (null == key)
+                        break;
+                    this.pollChanged(key);
+                }
+
+                if (changed) {
+                    try {
+                        this.onChange.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Error while reloading the config file.");
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private boolean pollChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (StandardWatchEventKinds.OVERFLOW == event.kind()
+                    || (context instanceof Path && this.file.getFileName().equals(context)))
+                changed = true;
+        }
+        key.reset();
+
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.thread.interrupt();
+        this.watchService.close();
+    }
+}
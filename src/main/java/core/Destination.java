@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import bots.Bot;
+
+import java.util.Objects;
+
+/**
+ * A channel messages are bridged to.
+ */
+public final class Destination {
+    private final Bot bot;
+    private final String channel;
+
+    Destination(Bot bot, String channel) {
+        this.bot = bot;
+        this.channel = channel;
+    }
+
+    public Bot getBot() {
+        return this.bot;
+    }
+
+    public String getChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof Destination))
+            return false;
+
+        final Destination destination = (Destination) obj;
+        return this.bot == destination.bot && this.channel.equals(destination.channel);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(System.identityHashCode(this.bot), this.channel);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import bots.Bot;
+import messages.BotTextMessage;
+import org.javatuples.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds the edits of a message for the edit delay of their destination, so a message edited
+ * several times in a few seconds is edited once, with its last text.
+ */
+final class EditDebouncer {
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "edit-debouncer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // (destination, source message) -> last edit and how to deliver it
+    private static final Map<Pair<Destination, String>, Pair<BotTextMessage, Consumer<BotTextMessage>>> pending =
+            new ConcurrentHashMap<>();
+
+    private EditDebouncer() {
+    }
+
+    /**
+     * Delivers the edit once the delay of the destination is over, unless a newer edit of
+     * the same message replaces it in the meantime.
+     */
+    static void submit(Destination destination, String messageKey, BotTextMessage edit,
+                       Consumer<BotTextMessage> delivery) {
+        final int delay = destination.getBot().getEditDelay();
+        if (delay <= 0) {
+            delivery.accept(edit);
+            return;
+        }
+
+        final Pair<Destination, String> key = Pair.with(destination, messageKey);
+        // Only the first edit of a window is scheduled, the next ones replace its text
+        if (null != pending.put(key, Pair.with(edit, delivery)))
+            return;
+
+        try {
+            executor.schedule(() -> EditDebouncer.deliver(key), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            EditDebouncer.deliver(key);
+        }
+    }
+
+    private static void deliver(Pair<Destination, String> key) {
+        final Pair<BotTextMessage, Consumer<BotTextMessage>> edit = pending.remove(key);
+        if (null != edit)
+            edit.getValue1().accept(edit.getValue0());
+    }
+
+    /**
+     * Delivers every edit held right away.
+     */
+    static void flush() {
+        final List<Pair<Destination, String>> keys = new ArrayList<>(pending.keySet());
+        keys.forEach(EditDebouncer::deliver);
+    }
+
+    /**
+     * Delivers the edits held for a bot right away.
+     */
+    static void flush(Bot bot) {
+        final List<Pair<Destination, String>> keys = new ArrayList<>(pending.keySet());
+        keys.stream()
+                .filter(key -> key.getValue0().getBot() == bot)
+                .forEach(EditDebouncer::deliver);
+    }
+}
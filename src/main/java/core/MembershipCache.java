@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import bots.Bot;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The users of the bridged channels, asked to their bots in parallel and kept for a short while.
+ * Entries close to their expiration are refreshed in the background, so most lookups don't wait.
+ */
+final class MembershipCache {
+    static final int DEFAULT_TTL_SECONDS = 60;
+    static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+    private static final int THREADS = 8;
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+            30L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "membership-lookup");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final Map<Destination, Entry> entries = new ConcurrentHashMap<>();
+    private static volatile long ttlMillis = TimeUnit.SECONDS.toMillis(DEFAULT_TTL_SECONDS);
+    private static volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private MembershipCache() {
+    }
+
+    /**
+     * @param ttlSeconds    seconds the users of a channel are kept
+     * @param timeoutMillis milliseconds a bot has to answer before its last users known are shown
+     */
+    static void configure(int ttlSeconds, int timeoutMillis) {
+        MembershipCache.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        MembershipCache.timeoutMillis = timeoutMillis;
+    }
+
+    static long getTimeoutMillis() {
+        return MembershipCache.timeoutMillis;
+    }
+
+    /**
+     * @return the users of the destination, completed right away if they have been asked recently
+     */
+    static CompletableFuture<List<String>> get(Destination destination) {
+        return entries.computeIfAbsent(destination, key -> new Entry()).get(destination);
+    }
+
+    /**
+     * @return the last users known, even if expired
+     */
+    static Optional<List<String>> getLast(Destination destination) {
+        final Entry entry = entries.get(destination);
+        return null == entry ? Optional.empty() : Optional.ofNullable(entry.users);
+    }
+
+    /**
+     * Forgets the users of a stopped bot.
+     */
+    static void forget(Bot bot) {
+        entries.keySet().removeIf(destination -> destination.getBot() == bot);
+    }
+
+    private static final class Entry {
+        private volatile List<String> users;
+        private volatile long fetched;
+        private CompletableFuture<List<String>> lookup;
+
+        synchronized CompletableFuture<List<String>> get(Destination destination) {
+            final long age = System.currentTimeMillis() - this.fetched;
+            final long ttl = MembershipCache.ttlMillis;
+            if (null != this.users && age < ttl) {
+                // Refresh ahead, so the next lookups find fresh users
+                if (age > ttl / 2)
+                    this.refresh(destination);
+                return CompletableFuture.completedFuture(this.users);
+            }
+
+            return this.refresh(destination);
+        }
+
+        private CompletableFuture<List<String>> refresh(Destination destination) {
+            if (null != this.lookup)
+                return this.lookup;
+
+            final CompletableFuture<List<String>> lookup = new CompletableFuture<>();
+            try {
+                executor.execute(() -> {
+                    try {
+                        lookup.complete(destination.getBot().getUsers(destination.getChannel()));
+                    } catch (RuntimeException e) {
+                        System.err.println(String.format("Error while asking the users of '%s' to '%s'.",
+                                destination.getChannel(), destination.getBot().getId()));
+                        e.printStackTrace();
+                        lookup.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                lookup.completeExceptionally(e);
+            }
+
+            this.lookup = lookup;
+            lookup.whenComplete((users, e) -> {
+                synchronized (this) {
+                    if (null != users) {
+                        this.users = users;
+                        this.fetched = System.currentTimeMillis();
+                    }
+                    this.lookup = null;
+                }
+            });
+            return lookup;
+        }
+    }
+}
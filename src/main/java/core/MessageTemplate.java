@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import bots.Bot;
+import messages.BotMessage;
+import org.javatuples.Pair;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * The format of the messages bridged to a channel, compiled once.
+ * Placeholders are {nickname}, {type} (e.g. Telegram), {channel} and {text}.
+ * When a message has no text, {text} is dropped with the separator right before it (e.g. ": ").
+ */
+public final class MessageTemplate {
+    public static final String DEFAULT_FORMAT = "{nickname} ({type}): {text}";
+    private static final ClassValue<String> TYPE_LABELS = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> botClass) {
+            final String botClassName = botClass.getSimpleName();
+            return botClassName.endsWith("Bot")
+                    ? botClassName.substring(0, botClassName.length() - "Bot".length())
+                    : botClassName;
+        }
+    };
+    private static final Pattern TEXT_SEPARATOR = Pattern.compile("\\s*[:|-]*\\s*$");
+    private static final ThreadLocal<StringBuilder> BUILDERS = ThreadLocal.withInitial(StringBuilder::new);
+    private static final int MAX_REUSED_CAPACITY = 4096;
+    private static volatile MessageTemplate defaultTemplate = MessageTemplate.compile(DEFAULT_FORMAT);
+    // Bot id -> channel -> template
+    private static volatile Map<String, Map<String, MessageTemplate>> templates = Collections.emptyMap();
+
+    private final Segment[] segments;
+    // Segments rendered when there's no text
+    private final Segment[] segmentsWithoutText;
+
+    private MessageTemplate(List<Segment> segments) {
+        this.segments = segments.toArray(new Segment[segments.size()]);
+
+        final List<Segment> withoutText = new ArrayList<>(segments);
+        for (int n = withoutText.size() - 1; n >= 0; n--) {
+            if (Field.TEXT != withoutText.get(n).field)
+                continue;
+
+            withoutText.remove(n);
+            if (n > 0 && null == withoutText.get(n - 1).field) {
+                n--;
+                final String literal = TEXT_SEPARATOR.matcher(withoutText.get(n).literal).replaceFirst("");
+                if (literal.isEmpty())
+                    withoutText.remove(n);
+                else
+                    withoutText.set(n, new Segment(literal, null));
+            }
+        }
+        this.segmentsWithoutText = withoutText.toArray(new Segment[withoutText.size()]);
+    }
+
+    /**
+     * @throws IllegalArgumentException if a placeholder is unknown or not closed
+     */
+    public static MessageTemplate compile(String format) {
+        final List<Segment> segments = new ArrayList<>();
+
+        int start = 0;
+        while (start < format.length()) {
+            final int open = format.indexOf('{', start);
+            if (-1 == open) {
+                segments.add(new Segment(format.substring(start), null));
+                break;
+            }
+
+            final int close = format.indexOf('}', open);
+            if (-1 == close)
+                throw new IllegalArgumentException(String.format("Placeholder not closed in '%s'", format));
+
+            if (open > start)
+                segments.add(new Segment(format.substring(start, open), null));
+            segments.add(new Segment(null, Field.of(format.substring(open + 1, close))));
+            start = close + 1;
+        }
+
+        return new MessageTemplate(segments);
+    }
+
+    /**
+     * Replaces every template at once.
+     *
+     * @param templates bot id -> channel -> template
+     */
+    static void setTemplates(MessageTemplate defaultTemplate, Map<String, Map<String, MessageTemplate>> templates) {
+        MessageTemplate.defaultTemplate = defaultTemplate;
+        MessageTemplate.templates = templates;
+    }
+
+    /**
+     * @return the template of the channel, or the default one
+     */
+    public static MessageTemplate forChannel(String botId, String channel) {
+        final Map<String, MessageTemplate> botTemplates = MessageTemplate.templates.get(botId);
+        if (null == botTemplates)
+            return MessageTemplate.defaultTemplate;
+
+        return botTemplates.getOrDefault(channel, MessageTemplate.defaultTemplate);
+    }
+
+    /**
+     * @return the label of the type of the bot, e.g. Telegram for TelegramBot
+     */
+    public static String getTypeLabel(Bot bot) {
+        return TYPE_LABELS.get(bot.getClass());
+    }
+
+    public String format(BotMessage msg, Optional<String> text) {
+        final Segment[] toRender = text.isPresent() ? this.segments : this.segmentsWithoutText;
+
+        final StringBuilder builder = MessageTemplate.getBuilder();
+        for (Segment segment : toRender)
+            MessageTemplate.render(builder, segment, msg, text);
+
+        return builder.toString();
+    }
+
+    /**
+     * Renders the template around {text}, for the outputs which lay out the text themselves.
+     *
+     * @return the parts before and after {text}. If the template has no {text}, the text goes after it
+     */
+    public Pair<String, String> formatAround(BotMessage msg) {
+        final StringBuilder builder = MessageTemplate.getBuilder();
+        String before = null;
+        for (Segment segment : this.segments) {
+            if (Field.TEXT != segment.field)
+                MessageTemplate.render(builder, segment, msg, Optional.empty());
+            else if (null == before) {
+                before = builder.toString();
+                builder.setLength(0);
+            }
+        }
+
+        return null == before ? Pair.with(builder.toString(), "") : Pair.with(before, builder.toString());
+    }
+
+    private static StringBuilder getBuilder() {
+        StringBuilder builder = BUILDERS.get();
+        if (builder.capacity() > MAX_REUSED_CAPACITY) {
+            // Don't keep a huge buffer around because of a single long message
+            builder = new StringBuilder();
+            BUILDERS.set(builder);
+        }
+        builder.setLength(0);
+        return builder;
+    }
+
+    private static void render(StringBuilder builder, Segment segment, BotMessage msg, Optional<String> text) {
+        if (null == segment.field) {
+            builder.append(segment.literal);
+            return;
+        }
+
+        switch (segment.field) {
+            case NICKNAME:
+                builder.append(msg.getNicknameFrom());
+                break;
+            case TYPE:
+                builder.append(MessageTemplate.getTypeLabel(msg.getBotFrom()));
+                break;
+            case CHANNEL:
+                builder.append(msg.getBotFrom().getChannelName(msg.getChannelFrom()));
+                break;
+            case TEXT:
+                builder.append(text.get());
+                break;
+        }
+    }
+
+    private enum Field {
+        NICKNAME, TYPE, CHANNEL, TEXT;
+
+        static Field of(String name) {
+            for (Field field : Field.values()) {
+                if (field.name().equalsIgnoreCase(name))
+                    return field;
+            }
+
+            throw new IllegalArgumentException(String.format("Unknown placeholder '{%s}'", name));
+        }
+    }
+
+    private static final class Segment {
+        private final String literal;
+        private final Field field;
+
+        private Segment(String literal, Field field) {
+            this.literal = literal;
+            this.field = field;
+        }
+    }
+}
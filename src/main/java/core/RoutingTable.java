@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable map from a source channel to the destinations of its messages.
+ * Changes create a new table, so it can be read without locks.
+ */
+final class RoutingTable {
+    private static final Destination[] NO_DESTINATIONS = new Destination[0];
+    // After NO_DESTINATIONS, which the constructor uses
+    static final RoutingTable EMPTY = new RoutingTable(Collections.emptyMap());
+    private final Map<String, Destination[]> routes;
+    // Every destination once, for messages addressed to every channel
+    private final Destination[] everyChannel;
+
+    private RoutingTable(Map<String, Destination[]> routes) {
+        this.routes = routes;
+
+        final Set<Destination> destinations = new LinkedHashSet<>();
+        routes.values().forEach(channelRoutes -> destinations.addAll(Arrays.asList(channelRoutes)));
+        this.everyChannel = destinations.toArray(NO_DESTINATIONS);
+    }
+
+    RoutingTable with(String channelFrom, Destination destination) {
+        final Map<String, Destination[]> newRoutes = new HashMap<>(this.routes);
+        final Destination[] channelRoutes = this.routes.getOrDefault(channelFrom, NO_DESTINATIONS);
+        final Destination[] newChannelRoutes = Arrays.copyOf(channelRoutes, channelRoutes.length + 1);
+        newChannelRoutes[channelRoutes.length] = destination;
+        newRoutes.put(channelFrom, newChannelRoutes);
+
+        return new RoutingTable(Collections.unmodifiableMap(newRoutes));
+    }
+
+    /**
+     * @return the destinations of channelFrom, or every destination for {@link BotsController#EVERY_CHANNEL}.
+     * The array must not be modified
+     */
+    Destination[] get(String channelFrom) {
+        if (BotsController.EVERY_CHANNEL.equals(channelFrom))
+            return this.everyChannel;
+
+        return this.routes.getOrDefault(channelFrom, NO_DESTINATIONS);
+    }
+
+    /**
+     * @return the destinations bridged to channelFrom only. The array must not be modified
+     */
+    Destination[] getBridged(String channelFrom) {
+        return this.routes.getOrDefault(channelFrom, NO_DESTINATIONS);
+    }
+}
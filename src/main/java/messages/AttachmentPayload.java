@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package messages;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The content of an attachment, readable many times.
+ * Small payloads are kept in memory, bigger ones are spilled to a temporary file.
+ * <p>
+ * The payload is reference counted: the creator owns the first reference and
+ * releases it with {@link #close()}, every reader has to {@link #retain()} it first.
+ * The temporary file is deleted once the last reference has been released.
+ */
+public final class AttachmentPayload implements AutoCloseable {
+    public static final int DEFAULT_SPILL_THRESHOLD = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static volatile int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+
+    private final byte[] data;
+    private final Path file;
+    private final long size;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private AttachmentPayload(byte[] data, Path file, long size) {
+        this.data = data;
+        this.file = file;
+        this.size = size;
+    }
+
+    public static void setSpillThreshold(int bytes) {
+        AttachmentPayload.spillThreshold = bytes;
+    }
+
+    /**
+     * Wraps data already in memory, without copying it.
+     */
+    public static AttachmentPayload of(byte[] data) {
+        return new AttachmentPayload(data, null, data.length);
+    }
+
+    /**
+     * Reads the stream until its end. The stream is not closed.
+     */
+    public static AttachmentPayload from(InputStream in) throws IOException {
+        final int threshold = AttachmentPayload.spillThreshold;
+        byte[] buffer = new byte[Math.min(threshold, BUFFER_SIZE) + 1];
+        int length = 0;
+
+        int read;
+        while (-1 != (read = in.read(buffer, length, buffer.length - length))) {
+            length += read;
+            if (length > threshold)
+                return AttachmentPayload.spill(buffer, length, in);
+            if (length == buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.min(threshold, buffer.length * 2) + 1);
+        }
+
+        return new AttachmentPayload(Arrays.copyOf(buffer, length), null, length);
+    }
+
+    private static AttachmentPayload spill(byte[] head, int headLength, InputStream in) throws IOException {
+        Path file = Files.createTempFile("brooklyn-", ".attachment");
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.WRITE)) {
+            out.write(head, 0, headLength);
+
+            long size = headLength;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while (-1 != (read = in.read(buffer))) {
+                out.write(buffer, 0, read);
+                size += read;
+            }
+
+            return new AttachmentPayload(null, file, size);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * @return a new stream positioned at the beginning of the payload
+     */
+    public InputStream openStream() throws IOException {
+        if (0 >= this.references.get())
+            throw new IllegalStateException("Attachment payload already released");
+
+        return null == this.file
+                ? new ByteArrayInputStream(this.data)
+                : new BufferedInputStream(Files.newInputStream(this.file), BUFFER_SIZE);
+    }
+
+    /**
+     * Only meant for the APIs that accept nothing but arrays.
+     * The returned array may be shared and must not be modified.
+     */
+    public byte[] toByteArray() throws IOException {
+        if (null == this.file)
+            return this.data;
+
+        return Files.readAllBytes(this.file);
+    }
+
+    /**
+     * @return the SHA-256 of the content, in hexadecimal
+     */
+    public String sha256Hex() throws IOException {
+        try (InputStream in = this.openStream()) {
+            return DigestUtils.sha256Hex(in);
+        }
+    }
+
+    public long size() {
+        return this.size;
+    }
+
+    public AttachmentPayload retain() {
+        if (0 >= this.references.getAndIncrement())
+            throw new IllegalStateException("Attachment payload already released");
+
+        return this;
+    }
+
+    public void release() {
+        if (0 != this.references.decrementAndGet() || null == this.file)
+            return;
+
+        try {
+            Files.deleteIfExists(this.file);
+        } catch (IOException e) {
+            System.err.println(String.format("Can't delete '%s'.", this.file));
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.release();
+    }
+}
@@ -17,15 +17,26 @@
 
 package messages;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
 public class BotDocumentMessage extends BotTextMessage {
-    private final byte[] doc;
+    private static final String CONTENT_HASH_KEY = "sha-256";
+    // Values derived from the document, shared by every destination
+    private final Map<String, Future<?>> derived = new ConcurrentHashMap<>();
+    private final AttachmentPayload doc;
     private final String fileExtension;
     private final BotDocumentType type;
     private final String filename;
 
     public BotDocumentMessage(BotTextMessage message,
                               String filename, String fileExtension,
-                              byte[] doc, BotDocumentType type) {
+                              AttachmentPayload doc, BotDocumentType type) {
         super(message, message.getText());
         this.doc = doc;
         this.fileExtension = fileExtension;
@@ -37,7 +48,7 @@ public class BotDocumentMessage extends BotTextMessage {
         return this.fileExtension;
     }
 
-    public byte[] getDoc() {
+    public AttachmentPayload getDoc() {
         return this.doc;
     }
 
@@ -48,4 +59,47 @@ public class BotDocumentMessage extends BotTextMessage {
     public BotDocumentType getDocumentType() {
         return this.type;
     }
+
+    /**
+     * @return the SHA-256 of the document, in hexadecimal
+     */
+    public String getContentHash() throws IOException {
+        return this.getDerived(CONTENT_HASH_KEY, this.doc::sha256Hex);
+    }
+
+    /**
+     * Computes a value derived from the document once, for the first destination asking for it.
+     * The others wait for it. Failures are not remembered.
+     */
+    public <T> T getDerived(String key, Derivation<T> derivation) throws IOException {
+        FutureTask<T> task = new FutureTask<>(derivation::compute);
+        Future<?> existing = this.derived.putIfAbsent(key, task);
+        final Future<T> value;
+        if (null == existing) {
+            task.run();
+            value = task;
+        } else {
+            // A key is always derived with the same type
+            @SuppressWarnings("unchecked")
+            Future<T> derived = (Future<T>) existing;
+            value = derived;
+        }
+
+        try {
+            return value.get();
+        } catch (ExecutionException e) {
+            this.derived.remove(key, value);
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Derivation<T> {
+        T compute() throws Exception;
+    }
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package messages;
+
+/**
+ * The version of the images a destination receives.
+ */
+public enum ImageVariant {
+    ORIGINAL,
+    // Re-encoded, at most REDUCED_MAX_SIDE pixels wide and tall
+    REDUCED,
+    // Re-encoded, at most THUMBNAIL_MAX_SIDE pixels wide and tall
+    THUMBNAIL
+}
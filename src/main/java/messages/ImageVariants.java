@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package messages;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-encodes the images bridged, for the destinations which don't need the original.
+ * The variants are derived once per message, on a background pool, as soon as a
+ * destination is known to need them.
+ */
+public final class ImageVariants {
+    private static final int REDUCED_MAX_SIDE = 1920;
+    private static final float REDUCED_QUALITY = 0.85f;
+    private static final int THUMBNAIL_MAX_SIDE = 320;
+    private static final float THUMBNAIL_QUALITY = 0.75f;
+    private static final String FORMAT = "jpg";
+    private static final int QUEUE_CAPACITY = 100;
+    private static final int DEFAULT_ORIENTATION = 1;
+    private static final int ORIENTATION_TAG = 0x0112;
+    private static final String EXIF_HEADER = "Exif\0\0";
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            30L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+            runnable -> {
+                Thread thread = new Thread(runnable, "image-variants");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            },
+            // The variant is derived by the first destination asking for it instead
+            new ThreadPoolExecutor.DiscardPolicy());
+
+    private ImageVariants() {
+    }
+
+    /**
+     * Starts deriving the variant in background.
+     */
+    public static void prepare(BotDocumentMessage msg, ImageVariant variant) {
+        if (ImageVariant.ORIGINAL == variant || BotDocumentType.IMAGE != msg.getDocumentType())
+            return;
+
+        // The payload has to outlive the deliveries which might not wait for it
+        final AttachmentPayload payload = msg.getDoc().retain();
+        try {
+            executor.execute(() -> {
+                try {
+                    ImageVariants.get(msg, variant);
+                } catch (IOException e) {
+                    System.err.println("Error while resizing an image");
+                    e.printStackTrace();
+                } finally {
+                    payload.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            payload.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the message with the variant of its image, or the message itself
+     * if it's not an image or the variant wouldn't be any smaller
+     */
+    public static BotDocumentMessage get(BotDocumentMessage msg, ImageVariant variant) throws IOException {
+        if (ImageVariant.ORIGINAL == variant || BotDocumentType.IMAGE != msg.getDocumentType())
+            return msg;
+
+        return msg.getDerived(variant.name(), () -> ImageVariants.derive(msg, variant));
+    }
+
+    private static BotDocumentMessage derive(BotDocumentMessage msg, ImageVariant variant) throws IOException {
+        // Animations would lose every frame but the first
+        if ("gif".equalsIgnoreCase(msg.getFileExtension()))
+            return msg;
+
+        BufferedImage image;
+        try (InputStream in = msg.getDoc().openStream()) {
+            image = ImageIO.read(in);
+        }
+        if (null == image)
+            return msg; // Not a format ImageIO can read
+
+        // ImageIO ignores the EXIF orientation, which the re-encoded image doesn't carry
+        int orientation;
+        try (InputStream in = msg.getDoc().openStream()) {
+            orientation = ImageVariants.readOrientation(in);
+        }
+        image = ImageVariants.orient(image, orientation);
+
+        final boolean thumbnail = ImageVariant.THUMBNAIL == variant;
+        byte[] data = ImageVariants.encode(
+                ImageVariants.scale(image, thumbnail ? THUMBNAIL_MAX_SIDE : REDUCED_MAX_SIDE),
+                thumbnail ? THUMBNAIL_QUALITY : REDUCED_QUALITY);
+        if (data.length >= msg.getDoc().size())
+            return msg;
+
+        return new BotDocumentMessage(msg, msg.getFilename(), FORMAT, AttachmentPayload.of(data), msg.getDocumentType());
+    }
+
+    /**
+     * @return the EXIF orientation of a JPEG, 1 (as stored) if it has none
+     */
+    private static int readOrientation(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (0xffd8 != data.readUnsignedShort())
+                return DEFAULT_ORIENTATION;
+
+            while (true) {
+                int marker = data.readUnsignedShort();
+                // The image data starts, the metadata is over
+                if (0xffda == marker || 0xffd9 == marker || 0xff00 != (marker & 0xff00))
+                    return DEFAULT_ORIENTATION;
+
+                byte[] segment = new byte[data.readUnsignedShort() - 2];
+                data.readFully(segment);
+                if (0xffe1 == marker && segment.length > EXIF_HEADER.length()
+                        && EXIF_HEADER.equals(new String(segment, 0, EXIF_HEADER.length(), StandardCharsets.ISO_8859_1)))
+                    return ImageVariants.readOrientation(ByteBuffer.wrap(segment, EXIF_HEADER.length(),
+                            segment.length - EXIF_HEADER.length()).slice());
+            }
+        } catch (EOFException | NegativeArraySizeException e) {
+            return DEFAULT_ORIENTATION;
+        }
+    }
+
+    /**
+     * Looks for the orientation in the first IFD of the TIFF structure embedded in the EXIF segment.
+     */
+    private static int readOrientation(ByteBuffer tiff) {
+        try {
+            if ('I' == tiff.get(0) && 'I' == tiff.get(1))
+                tiff.order(ByteOrder.LITTLE_ENDIAN);
+            else if ('M' != tiff.get(0) || 'M' != tiff.get(1))
+                return DEFAULT_ORIENTATION;
+
+            int ifd = tiff.getInt(4);
+            int entries = Short.toUnsignedInt(tiff.getShort(ifd));
+            for (int n = 0; n < entries; n++) {
+                int entry = ifd + 2 + n * 12;
+                if (ORIENTATION_TAG == Short.toUnsignedInt(tiff.getShort(entry))) {
+                    int orientation = Short.toUnsignedInt(tiff.getShort(entry + 8));
+                    return 1 <= orientation && orientation <= 8 ? orientation : DEFAULT_ORIENTATION;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // A truncated segment, the image is shown as stored
+        }
+        return DEFAULT_ORIENTATION;
+    }
+
+    /**
+     * Turns the image the way the viewers would, according to its EXIF orientation.
+     */
+    private static BufferedImage orient(BufferedImage image, int orientation) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        AffineTransform transform;
+        switch (orientation) {
+            case 2: // Mirrored horizontally
+                transform = new AffineTransform(-1, 0, 0, 1, width, 0);
+                break;
+            case 3: // Rotated by 180°
+                transform = new AffineTransform(-1, 0, 0, -1, width, height);
+                break;
+            case 4: // Mirrored vertically
+                transform = new AffineTransform(1, 0, 0, -1, 0, height);
+                break;
+            case 5: // Mirrored along the top-left diagonal
+                transform = new AffineTransform(0, 1, 1, 0, 0, 0);
+                break;
+            case 6: // Rotated by 90° clockwise
+                transform = new AffineTransform(0, 1, -1, 0, height, 0);
+                break;
+            case 7: // Mirrored along the top-right diagonal
+                transform = new AffineTransform(0, -1, -1, 0, height, width);
+                break;
+            case 8: // Rotated by 90° counterclockwise
+                transform = new AffineTransform(0, -1, 1, 0, 0, width);
+                break;
+            default:
+                return image;
+        }
+
+        boolean swapped = orientation >= 5;
+        BufferedImage oriented = new BufferedImage(swapped ? height : width, swapped ? width : height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = oriented.createGraphics();
+        graphics.drawImage(image, transform, null);
+        graphics.dispose();
+        return oriented;
+    }
+
+    private static BufferedImage scale(BufferedImage image, int maxSide) {
+        double ratio = Math.min(1, (double) maxSide / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+
+        // Halving one step at a time keeps bilinear scaling from skipping pixels
+        BufferedImage scaled = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = Math.max(height, currentHeight / 2);
+
+            // JPEG has no alpha channel, transparent pixels become white
+            BufferedImage step = new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = step.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(scaled, 0, 0, currentWidth, currentHeight, Color.WHITE, null);
+            graphics.dispose();
+            scaled = step;
+        } while (currentWidth != width || currentHeight != height);
+
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(FORMAT).next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A single writer connection plus a pool of read connections to a SQLite database.
+ * In WAL mode readers don't wait for the writer, so lookups are not serialized behind inserts.
+ */
+public final class Database implements AutoCloseable {
+    private static final String SQLITE_PREFIX = "jdbc:sqlite:";
+    private static final String MEMORY_DATABASE = ":memory:";
+    private static final int BUSY_TIMEOUT_MS = 5000;
+    private static final int CACHE_SIZE_KIB = 8192;
+    private final Handle writer;
+    private final BlockingQueue<Handle> readers;
+    private final int readersCount;
+
+    public Database(String uri, int readersCount) throws SQLException {
+        final boolean shared = Database.isShareable(uri);
+
+        this.writer = new Handle(DriverManager.getConnection(uri), shared);
+
+        // Private databases only exist for the connection which created them
+        this.readersCount = shared ? readersCount : 0;
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, this.readersCount));
+        for (int n = 0; n < this.readersCount; n++)
+            this.readers.add(new Handle(DriverManager.getConnection(uri), true));
+    }
+
+    private static boolean isShareable(String uri) {
+        if (!uri.startsWith(SQLITE_PREFIX))
+            return false;
+
+        final String path = uri.substring(SQLITE_PREFIX.length());
+        return !path.isEmpty() && !path.startsWith(MEMORY_DATABASE) && !path.contains("mode=memory");
+    }
+
+    public <T> T read(Query<T> query) throws SQLException {
+        if (0 == this.readersCount)
+            return this.write(query);
+
+        final Handle reader;
+        try {
+            reader = this.readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            return query.execute(reader);
+        } finally {
+            this.readers.add(reader);
+        }
+    }
+
+    public <T> T write(Query<T> query) throws SQLException {
+        synchronized (this.writer) {
+            return query.execute(this.writer);
+        }
+    }
+
+    /**
+     * Runs the query on the writer connection inside a transaction, rolled back if the query fails.
+     */
+    public <T> T transaction(Query<T> query) throws SQLException {
+        return this.write(handle -> {
+            final Connection connection = handle.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                final T result = query.execute(handle);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws SQLException {
+        this.write(handle -> {
+            handle.close();
+            return null;
+        });
+
+        for (Handle reader : this.readers)
+            reader.close();
+    }
+
+    @FunctionalInterface
+    public interface Query<T> {
+        T execute(Handle handle) throws SQLException;
+    }
+
+    /**
+     * A connection together with the statements already prepared on it.
+     * It's used by one thread at a time, so the statements can be reused safely.
+     */
+    public static final class Handle {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private Handle(Connection connection, boolean wal) throws SQLException {
+            this.connection = connection;
+
+            try (Statement pragmas = connection.createStatement()) {
+                if (wal) {
+                    pragmas.execute("PRAGMA journal_mode = WAL;");
+                    // Durable at every checkpoint, enough for temporary mappings
+                    pragmas.execute("PRAGMA synchronous = NORMAL;");
+                }
+                pragmas.execute("PRAGMA cache_size = -" + CACHE_SIZE_KIB + ';');
+                pragmas.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS + ';');
+            }
+        }
+
+        public Connection getConnection() {
+            return this.connection;
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = this.statements.get(sql);
+            if (null == statement) {
+                statement = this.connection.prepareStatement(sql);
+                this.statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        private void close() throws SQLException {
+            for (PreparedStatement statement : this.statements.values())
+                statement.close();
+            this.statements.clear();
+            this.connection.close();
+        }
+    }
+}
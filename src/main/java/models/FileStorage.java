@@ -17,70 +17,179 @@
 
 package models;
 
+import messages.AttachmentPayload;
+import messages.BotDocumentMessage;
 import org.apache.http.client.utils.URIBuilder;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Base64;
-import java.util.Date;
 import java.util.Map;
+import java.util.Optional;
 
+/**
+ * Stores files by content: the same content always gets the same URL,
+ * under {@literal <content-folder>/<first two hex digits>/<sha-256>.<extension>}.
+ */
 public class FileStorage {
-    private static Map<String, String> webserverConfig;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String STORED_URL_KEY = "stored-url";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // Hidden and private, so the webserver doesn't serve the files being written
+    private static final String UPLOADS_FOLDER = ".uploads";
+    private static volatile Map<String, String> webserverConfig;
 
     public static void init(Map<String, String> webserverConfig) {
         FileStorage.webserverConfig = webserverConfig;
     }
 
-    public static String storeFile(byte[] data, String fileExtension) throws URISyntaxException, IOException {
-        MessageDigest digest = null;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            // Should never happens
-            e.printStackTrace();
+    /**
+     * The document is stored once, however many destinations need its URL.
+     */
+    public static String storeFile(BotDocumentMessage msg) throws IOException {
+        return msg.getDerived(STORED_URL_KEY,
+                () -> FileStorage.storeFile(msg.getDoc(), msg.getContentHash(), msg.getFileExtension()));
+    }
+
+    /**
+     * A file stored already, found by its hash, is neither read nor written again.
+     */
+    public static String storeFile(AttachmentPayload data, String contentHash,
+                                   String fileExtension) throws URISyntaxException, IOException {
+        Optional<String> stored = FileStorage.findStored(contentHash, fileExtension);
+        if (stored.isPresent())
+            return FileStorage.toUrl(stored.get());
+
+        try (InputStream in = data.openStream()) {
+            return FileStorage.storeFile(in, fileExtension);
         }
+    }
+
+    /**
+     * The data is hashed while it is written to a temporary file, which is then
+     * moved into place atomically: a file is never published half written.
+     */
+    public static String storeFile(InputStream data, String fileExtension) throws URISyntaxException, IOException {
+        MessageDigest digest = FileStorage.newDigest();
 
-        byte[] hash = digest.digest(data);
-        String encoded = Base64.getEncoder().encodeToString(hash)
-                .replace(File.separator, ""); // It prevents to create useless directories
-
-        String filename = encoded + '.' + fileExtension;
-        String contentFolder = FileStorage.webserverConfig.get("content-folder");
-
-        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd");
-        Date date = new Date();
-        String folder = dateFormat.format(date);
-
-        String baseLocalPath;
-        baseLocalPath = contentFolder.substring(contentFolder.length() - 1).equals(File.separator)
-                ? contentFolder + folder
-                : contentFolder + File.separator + folder;
-        if (!contentFolder.substring(contentFolder.length() - 1).equals(File.separator))
-            baseLocalPath += File.separator;
-
-        // Create the directory if not exist
-        File directory = new File(baseLocalPath);
-        directory.mkdirs();
-
-        File file = new File(baseLocalPath + File.separator + filename);
-        if (!file.exists()) {
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                fos.write(data);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+        Path contentFolder = Paths.get(FileStorage.webserverConfig.get("content-folder"));
+        Path uploadsFolder = FileStorage.createUploadsFolder(contentFolder);
+
+        // On the file system of the content folder, so that it can be moved atomically
+        Path tmpFile = Files.createTempFile(uploadsFolder, ".upload-", ".tmp");
+        try {
+            try (ReadableByteChannel in = Channels.newChannel(data);
+                 FileChannel out = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (-1 != in.read(buffer)) {
+                    buffer.flip();
+                    digest.update(buffer.array(), 0, buffer.limit());
+                    while (buffer.hasRemaining())
+                        out.write(buffer);
+                    buffer.clear();
+                }
+                out.force(false);
             }
+
+            String hash = FileStorage.toHex(digest.digest());
+            Optional<String> stored = FileStorage.findStored(hash, fileExtension);
+            if (stored.isPresent())
+                return FileStorage.toUrl(stored.get());
+
+            String path = FileStorage.getPath(hash, fileExtension);
+            Path file = contentFolder.resolve(path);
+            Files.createDirectories(file.getParent());
+            FileStorage.makeReadable(tmpFile);
+            // Concurrent stores of the same content write the same bytes, the last rename wins
+            Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+
+            return FileStorage.toUrl(path);
+        } finally {
+            Files.deleteIfExists(tmpFile);
         }
+    }
+
+    /**
+     * @return the path relative to the content folder, if the content has been stored already
+     */
+    private static Optional<String> findStored(String hash, String fileExtension) {
+        // The path follows from the hash, the file system is the index
+        Optional<String> path = Optional.of(FileStorage.getPath(hash, fileExtension)).filter(candidate ->
+                Files.exists(Paths.get(FileStorage.webserverConfig.get("content-folder")).resolve(candidate)));
 
+        // Files are cleaned by age, the ones still in use are kept fresh
+        path.ifPresent(FileStorage::touch);
+        return path;
+    }
+
+    private static String getPath(String hash, String fileExtension) {
+        String filename = fileExtension.isEmpty() ? hash : hash + '.' + fileExtension;
+        return hash.substring(0, 2) + '/' + filename;
+    }
+
+    private static String toUrl(String path) throws URISyntaxException {
         URIBuilder builder = new URIBuilder(FileStorage.webserverConfig.get("base-url"));
-        builder.setPath(dateFormat.format(date) + '/' + filename);
+        builder.setPath(path);
         return builder.toString();
     }
+
+    private static void touch(String path) {
+        try {
+            Path file = Paths.get(FileStorage.webserverConfig.get("content-folder")).resolve(path);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int n = 0; n < bytes.length; n++) {
+            hex[n * 2] = HEX_DIGITS[(bytes[n] >> 4) & 0xf];
+            hex[n * 2 + 1] = HEX_DIGITS[bytes[n] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    private static Path createUploadsFolder(Path contentFolder) throws IOException {
+        Path uploadsFolder = contentFolder.resolve(UPLOADS_FOLDER);
+        if (Files.isDirectory(uploadsFolder))
+            return uploadsFolder;
+
+        Files.createDirectories(uploadsFolder);
+        try {
+            Files.setPosixFilePermissions(uploadsFolder, PosixFilePermissions.fromString("rwx------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+        return uploadsFolder;
+    }
+
+    private static void makeReadable(Path file) throws IOException {
+        // Temporary files are private, the webserver has to read them
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+    }
 }
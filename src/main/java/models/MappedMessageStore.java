@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the messages in a memory-mapped, append-only log and looks them up in an in-memory index.
+ * Each record is preceded by its length and its CRC32: after a crash the log is replayed
+ * up to the first damaged record, which is discarded together with anything after it.
+ * When the log is full it is rewritten without the expired records and grown if still needed.
+ */
+public class MappedMessageStore implements MessageStore {
+    private static final int MAGIC = 0x42524b4c; // BRKL
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    // int length + int crc
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int INITIAL_CAPACITY = 16 * 1024 * 1024;
+    private final Path path;
+    private final long retentionSeconds;
+    private final int initialCapacity;
+    private final Map<Triplet<String, String, String>, StoredMessage> index = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+
+    /**
+     * @param retentionSeconds how long mappings are kept, 0 to keep them forever
+     */
+    public MappedMessageStore(Path path, long retentionSeconds) throws IOException {
+        this(path, retentionSeconds, INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity bytes mapped when the log is created, it's grown when needed
+     */
+    MappedMessageStore(Path path, long retentionSeconds, int initialCapacity) throws IOException {
+        this.path = path;
+        this.retentionSeconds = retentionSeconds;
+        this.initialCapacity = initialCapacity;
+
+        this.map(initialCapacity);
+        this.recover();
+    }
+
+    private static long now() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    private static byte[] encode(Triplet<String, String, String> from, StoredMessage message) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeLong(message.created);
+            output.writeUTF(from.getValue0());
+            output.writeUTF(from.getValue1());
+            output.writeUTF(from.getValue2());
+            output.writeInt(message.children.size());
+            for (Map.Entry<Pair<String, String>, String> child : message.children.entrySet()) {
+                output.writeUTF(child.getKey().getValue0());
+                output.writeUTF(child.getKey().getValue1());
+                output.writeUTF(child.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int checksum(byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Maps the log. The current mapping is replaced only if the new one succeeds
+     */
+    private void map(int minimumCapacity) throws IOException {
+        final FileChannel channel = FileChannel.open(this.path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final boolean empty = 0 == channel.size();
+            final long capacity = Math.max(channel.size(), minimumCapacity);
+            if (Integer.MAX_VALUE < capacity)
+                throw new IOException(String.format("'%s' is too big to be mapped", this.path));
+
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            if (empty) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(Integer.BYTES, VERSION);
+            } else if (MAGIC != buffer.getInt(0) || VERSION != buffer.getInt(Integer.BYTES))
+                throw new IOException(String.format("'%s' is not a messages log", this.path));
+
+            this.channel = channel;
+            this.buffer = buffer;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Rebuilds the index from the log.
+     */
+    private void recover() throws IOException {
+        final long expiration = 0 < this.retentionSeconds ? now() - this.retentionSeconds : 0;
+        final int capacity = this.buffer.capacity();
+
+        int offset = HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= capacity) {
+            final int length = this.buffer.getInt(offset);
+            if (0 == length)
+                break;
+
+            if (0 > length || offset + RECORD_HEADER_SIZE + length > capacity) {
+                this.discard(offset);
+                break;
+            }
+
+            final byte[] payload = new byte[length];
+            final ByteBuffer record = this.buffer.duplicate();
+            record.position(offset + RECORD_HEADER_SIZE);
+            record.get(payload);
+            if (checksum(payload) != this.buffer.getInt(offset + Integer.BYTES)) {
+                this.discard(offset);
+                break;
+            }
+
+            try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+                final long created = input.readLong();
+                final Triplet<String, String, String> from = Triplet.with(input.readUTF(), input.readUTF(),
+                        input.readUTF());
+                final int count = input.readInt();
+                final Map<Pair<String, String>, String> children = new HashMap<>(count);
+                for (int n = 0; n < count; n++)
+                    children.put(Pair.with(input.readUTF(), input.readUTF()), input.readUTF());
+
+                if (created >= expiration)
+                    this.index.put(from, new StoredMessage(created, children));
+            }
+
+            offset += RECORD_HEADER_SIZE + length;
+        }
+
+        this.position = offset;
+    }
+
+    /**
+     * Drops a damaged record and whatever follows it.
+     */
+    private void discard(int offset) {
+        System.err.println(String.format("Discarding the damaged tail of '%s' at offset %d.", this.path, offset));
+
+        final byte[] zeros = new byte[4096];
+        final ByteBuffer tail = this.buffer.duplicate();
+        tail.position(offset);
+        while (tail.hasRemaining())
+            tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+    }
+
+    private void append(Triplet<String, String, String> from, StoredMessage message) throws IOException {
+        final byte[] payload = encode(from, message);
+        final int size = RECORD_HEADER_SIZE + payload.length;
+        if (this.position + size > this.buffer.capacity())
+            this.compact(size);
+
+        final ByteBuffer record = this.buffer.duplicate();
+        record.position(this.position + RECORD_HEADER_SIZE);
+        record.put(payload);
+        this.buffer.putInt(this.position + Integer.BYTES, checksum(payload));
+        // The length is written last, so a record is never visible before being complete
+        this.buffer.putInt(this.position, payload.length);
+        this.position += size;
+    }
+
+    /**
+     * Rewrites the log with the records still valid, growing it if there isn't enough room left.
+     * The index and the position are updated only once the new log is mapped, so a failure leaves
+     * the store as it was.
+     */
+    private void compact(int needed) throws IOException {
+        final long expiration = 0 < this.retentionSeconds ? now() - this.retentionSeconds : 0;
+        final List<Triplet<String, String, String>> expired = new ArrayList<>();
+
+        final Path compacted = Paths.get(this.path.toString() + ".compact");
+        Files.deleteIfExists(compacted);
+
+        long size = HEADER_SIZE;
+        try (FileChannel output = FileChannel.open(compacted, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            output.write(header);
+
+            for (Map.Entry<Triplet<String, String, String>, StoredMessage> entry : this.index.entrySet()) {
+                if (entry.getValue().created < expiration) {
+                    expired.add(entry.getKey());
+                    continue;
+                }
+
+                final byte[] payload = encode(entry.getKey(), entry.getValue());
+                final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+                record.putInt(payload.length).putInt(checksum(payload)).put(payload).flip();
+                while (record.hasRemaining())
+                    output.write(record);
+                size += record.capacity();
+            }
+
+            output.force(true);
+        }
+
+        // Keeps at least half of the log free, so compactions stay rare
+        long newCapacity = Math.max(this.buffer.capacity(), this.initialCapacity);
+        while (size + needed > newCapacity / 2)
+            newCapacity *= 2;
+        if (Integer.MAX_VALUE < newCapacity) {
+            Files.deleteIfExists(compacted);
+            throw new IOException(String.format("'%s' is full", this.path));
+        }
+
+        // The old log stays mapped until the new one is, it's closed only then
+        final FileChannel oldChannel = this.channel;
+        Files.move(compacted, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.map((int) newCapacity);
+        oldChannel.close();
+
+        expired.forEach(this.index::remove);
+        this.position = (int) size;
+    }
+
+    @Override
+    public synchronized void save(Triplet<String, String, String> from, List<Triplet<String, String, String>> to) {
+        // The copies stored before are kept, the record replaces theirs when the log is replayed
+        final StoredMessage previous = this.index.get(from);
+        final Map<Pair<String, String>, String> children = null != previous
+                ? new HashMap<>(previous.children) : new HashMap<>(to.size());
+        to.forEach(message -> children.put(Pair.with(message.getValue0(), message.getValue1()), message.getValue2()));
+        final StoredMessage message = new StoredMessage(null != previous ? previous.created : now(), children);
+
+        try {
+            this.append(from, message);
+            this.index.put(from, message);
+        } catch (IOException e) {
+            System.err.println("Error while storing the message");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Optional<String> getChildMessage(Triplet<String, String, String> from, String botIdTo, String channelIdTo) {
+        final StoredMessage message = this.index.get(from);
+        if (null == message || (0 < this.retentionSeconds && message.created < now() - this.retentionSeconds))
+            return Optional.empty();
+
+        return Optional.ofNullable(message.children.get(Pair.with(botIdTo, channelIdTo)));
+    }
+
+    @Override
+    public synchronized void clean() {
+        this.index.clear();
+        this.discard(HEADER_SIZE);
+        this.position = HEADER_SIZE;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.buffer.force();
+        this.channel.close();
+    }
+
+    private static final class StoredMessage {
+        private final long created;
+        private final Map<Pair<String, String>, String> children;
+
+        private StoredMessage(long created, Map<Pair<String, String>, String> children) {
+            this.created = created;
+            this.children = children;
+        }
+    }
+}
@@ -17,56 +17,56 @@
 
 package models;
 
-import java.sql.*;
-import java.util.LinkedList;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Collects the copies of a message while they are delivered. Each copy can be edited as soon as
+ * it's known, the copies are stored together once every destination has been served.
+ */
 public class MessageBuilder {
-    private static Connection database;
-    private final int idFrom;
-    private final List<Integer> idsTo = new LinkedList<>();
+    // Triplet<String botId, String channelId, String messageId>
+    private final Triplet<String, String, String> from;
+    private final List<Triplet<String, String, String>> to = new ArrayList<>();
+    private final AtomicInteger pendingCopies;
 
-    public MessageBuilder(String botId, String channelId, String messageId) {
-        idFrom = append(botId, channelId, messageId);
-        idsTo.remove(Integer.valueOf(idFrom));
+    /**
+     * @param copies how many destinations the message is sent to
+     */
+    public MessageBuilder(String botId, String channelId, String messageId, int copies) {
+        from = Triplet.with(botId, channelId, messageId);
+        pendingCopies = new AtomicInteger(copies);
     }
 
-    protected static void init(Connection database) {
-        MessageBuilder.database = database;
+    public void append(String botId, String channelId, String messageId) {
+        MessagesModel.cacheHistory(from, Collections.singletonMap(Pair.with(botId, channelId), messageId));
+        synchronized (this) {
+            to.add(Triplet.with(botId, channelId, messageId));
+        }
+        this.served();
     }
 
-    public int append(String botId, String channelId, String messageId) {
-        String sql = "INSERT INTO messages(bot,channel,message) VALUES(?,?,?)";
-        try (final PreparedStatement pstmt = database.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            pstmt.setString(1, botId);
-            pstmt.setString(2, channelId);
-            pstmt.setString(3, messageId);
-            pstmt.executeUpdate();
-
-            try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    int newId = rs.getInt(1);
-                    idsTo.add(newId);
-                    return newId;
-                } else
-                    return -1;
-            }
-        } catch (SQLException e) {
-            System.err.println(e.getMessage());
-            return -1;
-        }
+    /**
+     * Accounts for a destination the message couldn't be sent to.
+     */
+    public void skip() {
+        this.served();
     }
 
-    public void saveHistory() {
-        String sql = "INSERT INTO bridge(fromId,toId) VALUES(?,?)";
-        idsTo.forEach(idTo -> {
-            try (final PreparedStatement pstmt = database.prepareStatement(sql)) {
-                pstmt.setInt(1, idFrom);
-                pstmt.setInt(2, idTo);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                System.err.println(e.getMessage());
-            }
-        });
+    private void served() {
+        if (0 != pendingCopies.decrementAndGet())
+            return;
+
+        final List<Triplet<String, String, String>> copies;
+        synchronized (this) {
+            copies = new ArrayList<>(to);
+        }
+        if (!copies.isEmpty())
+            MessagesModel.saveHistory(from, copies);
     }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import org.javatuples.Triplet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Where the ids of the bridged messages are stored, so that edits can be propagated.
+ * Messages are identified by {@literal Triplet<String botId, String channelId, String messageId>}.
+ */
+public interface MessageStore extends AutoCloseable {
+    /**
+     * Stores copies of a message. The copies of the same message stored before are kept.
+     */
+    void save(Triplet<String, String, String> from, List<Triplet<String, String, String>> to);
+
+    /**
+     * @return the id of the copy of the message sent by botIdTo in channelIdTo
+     */
+    Optional<String> getChildMessage(Triplet<String, String, String> from, String botIdTo, String channelIdTo);
+
+    /**
+     * Deletes everything stored.
+     */
+    void clean();
+
+    @Override
+    void close() throws IOException;
+}
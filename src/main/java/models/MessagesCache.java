@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the copies of the most recent messages, so that edits don't query the database.
+ */
+public final class MessagesCache {
+    private final Map<Triplet<String, String, String>, CachedMessage> entries;
+    private final long ttlNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    MessagesCache(int size, long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<Triplet<String, String, String>, CachedMessage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Triplet<String, String, String>, CachedMessage> eldest) {
+                return this.size() > size;
+            }
+        };
+    }
+
+    /**
+     * Adds copies to the ones of the message already cached.
+     *
+     * @param children {@literal Map<Pair<String botId, String channelId>, String messageId>}
+     */
+    synchronized void merge(Triplet<String, String, String> from, Map<Pair<String, String>, String> children) {
+        final CachedMessage entry = this.entries.get(from);
+        if (null == entry || entry.expiresAt - System.nanoTime() <= 0) {
+            this.entries.put(from, new CachedMessage(System.nanoTime() + this.ttlNanos,
+                    Collections.unmodifiableMap(new HashMap<>(children))));
+            return;
+        }
+
+        final Map<Pair<String, String>, String> merged = new HashMap<>(entry.children);
+        merged.putAll(children);
+        this.entries.put(from, new CachedMessage(entry.expiresAt, Collections.unmodifiableMap(merged)));
+    }
+
+    /**
+     * @return the known copies of the message, or empty if the message is not cached
+     */
+    synchronized Optional<Map<Pair<String, String>, String>> get(Triplet<String, String, String> from) {
+        final CachedMessage entry = this.entries.get(from);
+        if (null != entry && entry.expiresAt - System.nanoTime() > 0) {
+            this.hits.incrementAndGet();
+            return Optional.of(entry.children);
+        }
+
+        if (null != entry)
+            this.entries.remove(from);
+        this.misses.incrementAndGet();
+        return Optional.empty();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    private static final class CachedMessage {
+        private final long expiresAt;
+        private final Map<Pair<String, String>, String> children;
+
+        private CachedMessage(long expiresAt, Map<Pair<String, String>, String> children) {
+            this.expiresAt = expiresAt;
+            this.children = children;
+        }
+    }
+}
@@ -17,72 +17,59 @@
 
 package models;
 
-import java.sql.*;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class MessagesModel {
-    private static Connection database;
+    private static MessageStore store;
+    private static MessagesCache cache;
 
-    public static void init(Connection database) throws SQLException {
-        MessagesModel.database = database;
-        MessageBuilder.init(database);
+    /**
+     * @param retentionSeconds how long mappings are kept by the store, 0 if forever
+     */
+    public static void init(MessageStore store, int cacheSize, long cacheTtlSeconds, long retentionSeconds) {
+        MessagesModel.store = store;
+        // Expired messages must not be edited even if they are still cached
+        MessagesModel.cache = new MessagesCache(cacheSize,
+                0 < retentionSeconds ? Math.min(cacheTtlSeconds, retentionSeconds) : cacheTtlSeconds,
+                TimeUnit.SECONDS);
+    }
 
-        String messageTableSql = "CREATE TABLE IF NOT EXISTS messages (\n"
-                + "	id integer PRIMARY KEY AUTOINCREMENT,\n"
-                + "	bot varchar(255) NOT NULL,\n"
-                + "	channel varchar(255) NOT NULL,\n"
-                + "	message varchar(36) NOT NULL,\n"
-                + " CONSTRAINT UC_message UNIQUE (bot,channel,message)"
-                + ");";
+    public static MessagesCache getCache() {
+        return cache;
+    }
 
-        String bridgeTableSql = "CREATE TABLE IF NOT EXISTS bridge (\n"
-                + "fromId integer REFERENCES messages(id) ON DELETE CASCADE,\n"
-                + "toId integer REFERENCES messages(id) ON DELETE CASCADE,\n"
-                + "PRIMARY KEY(fromId, toId)"
-                + ");";
+    /**
+     * Makes copies of a message editable before they are stored.
+     */
+    static void cacheHistory(Triplet<String, String, String> from, Map<Pair<String, String>, String> children) {
+        cache.merge(from, children);
+    }
 
-        try (Statement createTables = database.createStatement()) {
-            createTables.execute(messageTableSql);
-            createTables.execute(bridgeTableSql);
-        }
+    static void saveHistory(Triplet<String, String, String> from, List<Triplet<String, String, String>> to) {
+        store.save(from, to);
     }
 
     public static void clean() {
-        String deleteBridge = "DROP TABLE bridge;";
-        String deleteMessages = "DROP TABLE messages;";
-        try (Statement createTables = database.createStatement()) {
-            createTables.execute(deleteBridge);
-            createTables.execute(deleteMessages);
-        } catch (SQLException e) {
-            System.err.println(e.getMessage());
-        }
+        store.clean();
     }
 
     public static Optional<String> getChildMessage(String botIdFrom, String channelIdFrom, String messageIdFrom,
                                                    String botIdTo, String channelIdTo) {
-        String query = "SELECT toMessages.message \n"
-                + "FROM ((messages fromMessages INNER JOIN bridge ON fromMessages.id = bridge.fromId) \n"
-                + "INNER JOIN messages toMessages ON toMessages.id = bridge.toId)"
-                + "WHERE fromMessages.bot = ? AND fromMessages.channel = ? AND fromMessages.message = ? \n"
-                + "AND toMessages.bot = ? AND toMessages.channel = ? \n"
-                + "LIMIT 1;";
-
-        Optional<String> output = Optional.empty();
-        try (final PreparedStatement pstmt = database.prepareStatement(query)) {
-            pstmt.setString(1, botIdFrom);
-            pstmt.setString(2, channelIdFrom);
-            pstmt.setString(3, messageIdFrom);
-            pstmt.setString(4, botIdTo);
-            pstmt.setString(5, channelIdTo);
-
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next())
-                    output = Optional.ofNullable(rs.getString("message"));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        final Triplet<String, String, String> from = Triplet.with(botIdFrom, channelIdFrom, messageIdFrom);
+        final Optional<Map<Pair<String, String>, String>> children = cache.get(from);
+        if (children.isPresent()) {
+            final String child = children.get().get(Pair.with(botIdTo, channelIdTo));
+            // The copies saved before the message was cached are only in the store
+            if (null != child)
+                return Optional.of(child);
         }
 
-        return output;
+        return store.getChildMessage(from, botIdTo, channelIdTo);
     }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically deletes the mappings older than the retention window.
+ * Rows are deleted in small chunks, each in its own transaction, so writers are never blocked for long.
+ */
+final class MessagesRetention implements AutoCloseable {
+    private static final long INTERVAL_MINUTES = 10;
+    private static final int CHUNK_SIZE = 500;
+    private static final int VACUUM_PAGES = 1000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private static final String EXPIRED_SQL = "SELECT id FROM messages WHERE created < ? ORDER BY created, id LIMIT "
+            + CHUNK_SIZE;
+    private static final String DELETE_BRIDGE_SQL = "DELETE FROM bridge WHERE fromId IN (" + EXPIRED_SQL + ");";
+    private static final String DELETE_MESSAGES_SQL = "DELETE FROM messages WHERE id IN (" + EXPIRED_SQL + ");";
+    private final Database database;
+    private final long retentionSeconds;
+    private final ScheduledExecutorService executor;
+
+    MessagesRetention(Database database, long retentionSeconds) {
+        this.database = database;
+        this.retentionSeconds = retentionSeconds;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "messages-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::compact, INTERVAL_MINUTES, INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private void compact() {
+        final long expiration = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - this.retentionSeconds;
+
+        try {
+            int deleted;
+            do {
+                deleted = this.database.transaction(handle -> {
+                    // Bridge rows are deleted first, while their messages can still be found
+                    final PreparedStatement deleteBridge = handle.prepare(DELETE_BRIDGE_SQL);
+                    deleteBridge.setLong(1, expiration);
+                    deleteBridge.executeUpdate();
+
+                    final PreparedStatement deleteMessages = handle.prepare(DELETE_MESSAGES_SQL);
+                    deleteMessages.setLong(1, expiration);
+                    return deleteMessages.executeUpdate();
+                });
+
+                // Let the other writers in between chunks
+                Thread.yield();
+            } while (CHUNK_SIZE == deleted && !Thread.currentThread().isInterrupted());
+
+            this.database.write(handle -> {
+                try (Statement vacuum = handle.getConnection().createStatement()) {
+                    vacuum.execute("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ");");
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            System.err.println("Error while deleting the expired messages");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import org.javatuples.Triplet;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+public class SqliteMessageStore implements MessageStore {
+    private static final int SCHEMA_VERSION = 3;
+    private static final String MESSAGES_TABLE_SQL = "CREATE TABLE IF NOT EXISTS messages (\n"
+            + "	id integer PRIMARY KEY,\n"
+            + "	bot varchar(255) NOT NULL,\n"
+            + "	channel varchar(255) NOT NULL,\n"
+            + "	message varchar(36) NOT NULL,\n"
+            + "	created integer NOT NULL DEFAULT (strftime('%s', 'now'))\n"
+            + ");";
+    // Every index entry carries the rowid, so looking up the id never touches the table
+    private static final String MESSAGES_INDEX_SQL = "CREATE UNIQUE INDEX IF NOT EXISTS messages_lookup "
+            + "ON messages(bot, channel, message);";
+    private static final String MESSAGES_CREATED_INDEX_SQL = "CREATE INDEX IF NOT EXISTS messages_created "
+            + "ON messages(created);";
+    private static final String BRIDGE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS bridge (\n"
+            + "fromId integer NOT NULL REFERENCES messages(id) ON DELETE CASCADE,\n"
+            + "toId integer NOT NULL REFERENCES messages(id) ON DELETE CASCADE,\n"
+            + "PRIMARY KEY(fromId, toId)"
+            + ") WITHOUT ROWID;";
+    private static final String INSERT_MESSAGE_SQL = "INSERT OR IGNORE INTO messages(bot,channel,message) VALUES(?,?,?)";
+    private static final String INSERT_BRIDGE_SQL = "INSERT OR IGNORE INTO bridge(fromId,toId) \n"
+            + "SELECT fromMessages.id, toMessages.id \n"
+            + "FROM messages fromMessages, messages toMessages \n"
+            + "WHERE fromMessages.bot = ? AND fromMessages.channel = ? AND fromMessages.message = ? \n"
+            + "AND toMessages.bot = ? AND toMessages.channel = ? AND toMessages.message = ?";
+    private static final String CHILD_MESSAGE_SQL = "SELECT toMessages.message \n"
+            + "FROM ((messages fromMessages INNER JOIN bridge ON fromMessages.id = bridge.fromId) \n"
+            + "INNER JOIN messages toMessages ON toMessages.id = bridge.toId)"
+            + "WHERE fromMessages.bot = ? AND fromMessages.channel = ? AND fromMessages.message = ? \n"
+            + "AND toMessages.bot = ? AND toMessages.channel = ? \n"
+            + "AND fromMessages.created >= ? \n"
+            + "LIMIT 1;";
+    private final Database database;
+    private final long retentionSeconds;
+    private MessagesRetention retention;
+
+    /**
+     * @param retentionSeconds how long mappings are kept, 0 to keep them forever
+     */
+    public SqliteMessageStore(Database database, long retentionSeconds) throws SQLException {
+        this.database = database;
+        this.retentionSeconds = retentionSeconds;
+
+        database.write(handle -> {
+            final Connection connection = handle.getConnection();
+            if (SCHEMA_VERSION > SqliteMessageStore.getSchemaVersion(connection) &&
+                    SqliteMessageStore.tableExists(connection, "messages"))
+                SqliteMessageStore.migrate(connection);
+
+            try (Statement createTables = connection.createStatement()) {
+                // Only effective on a new database, migrate() takes care of the old ones
+                createTables.execute("PRAGMA auto_vacuum = INCREMENTAL;");
+                createTables.execute(MESSAGES_TABLE_SQL);
+                createTables.execute(MESSAGES_INDEX_SQL);
+                createTables.execute(MESSAGES_CREATED_INDEX_SQL);
+                createTables.execute(BRIDGE_TABLE_SQL);
+                createTables.execute("PRAGMA user_version = " + SCHEMA_VERSION + ';');
+            }
+            return null;
+        });
+
+        if (0 < retentionSeconds)
+            this.retention = new MessagesRetention(database, retentionSeconds);
+    }
+
+    private static int getSchemaVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA user_version;")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static boolean tableExists(Connection connection, String table) throws SQLException {
+        try (PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?;")) {
+            pstmt.setString(1, table);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Moves the mappings stored by older versions to the current schema.
+     */
+    private static void migrate(Connection connection) throws SQLException {
+        System.out.println("Migrating the messages database...");
+
+        connection.setAutoCommit(false);
+        try (Statement migration = connection.createStatement()) {
+            // Indexes follow their table when it's renamed
+            migration.execute("DROP INDEX IF EXISTS messages_lookup;");
+            migration.execute("DROP INDEX IF EXISTS messages_created;");
+            migration.execute("ALTER TABLE bridge RENAME TO bridge_old;");
+            migration.execute("ALTER TABLE messages RENAME TO messages_old;");
+            migration.execute(MESSAGES_TABLE_SQL);
+            migration.execute(MESSAGES_INDEX_SQL);
+            migration.execute(MESSAGES_CREATED_INDEX_SQL);
+            migration.execute(BRIDGE_TABLE_SQL);
+            migration.execute("INSERT INTO messages(id,bot,channel,message) "
+                    + "SELECT id,bot,channel,message FROM messages_old;");
+            migration.execute("INSERT OR IGNORE INTO bridge(fromId,toId) "
+                    + "SELECT fromId,toId FROM bridge_old WHERE fromId IS NOT NULL AND toId IS NOT NULL;");
+            migration.execute("DROP TABLE bridge_old;");
+            migration.execute("DROP TABLE messages_old;");
+            migration.execute("PRAGMA user_version = " + SCHEMA_VERSION + ';');
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+
+        // auto_vacuum can only be turned on by rebuilding the file
+        try (Statement vacuum = connection.createStatement()) {
+            vacuum.execute("PRAGMA auto_vacuum = INCREMENTAL;");
+            vacuum.execute("VACUUM;");
+        }
+    }
+
+    private static void setMessage(PreparedStatement pstmt, Triplet<String, String, String> message) throws SQLException {
+        pstmt.setString(1, message.getValue0());
+        pstmt.setString(2, message.getValue1());
+        pstmt.setString(3, message.getValue2());
+    }
+
+    /**
+     * Writes the message and all of its copies in a single transaction.
+     */
+    @Override
+    public void save(Triplet<String, String, String> from, List<Triplet<String, String, String>> to) {
+        try {
+            database.transaction(handle -> {
+                // Prepared once per connection and reused by every message
+                final PreparedStatement insertMessage = handle.prepare(INSERT_MESSAGE_SQL);
+                setMessage(insertMessage, from);
+                insertMessage.addBatch();
+                for (Triplet<String, String, String> message : to) {
+                    setMessage(insertMessage, message);
+                    insertMessage.addBatch();
+                }
+                insertMessage.executeBatch();
+
+                final PreparedStatement insertBridge = handle.prepare(INSERT_BRIDGE_SQL);
+                for (Triplet<String, String, String> message : to) {
+                    setMessage(insertBridge, from);
+                    insertBridge.setString(4, message.getValue0());
+                    insertBridge.setString(5, message.getValue1());
+                    insertBridge.setString(6, message.getValue2());
+                    insertBridge.addBatch();
+                }
+                insertBridge.executeBatch();
+
+                return null;
+            });
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    @Override
+    public Optional<String> getChildMessage(Triplet<String, String, String> from, String botIdTo, String channelIdTo) {
+        try {
+            return database.read(handle -> {
+                final PreparedStatement pstmt = handle.prepare(CHILD_MESSAGE_SQL);
+                setMessage(pstmt, from);
+                pstmt.setString(4, botIdTo);
+                pstmt.setString(5, channelIdTo);
+                pstmt.setLong(6, 0 < retentionSeconds
+                        ? TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - retentionSeconds : 0);
+
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next())
+                        return Optional.ofNullable(rs.getString("message"));
+                }
+                return Optional.<String>empty();
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void clean() {
+        String deleteBridge = "DROP TABLE bridge;";
+        String deleteMessages = "DROP TABLE messages;";
+        try {
+            database.write(handle -> {
+                try (Statement createTables = handle.getConnection().createStatement()) {
+                    createTables.execute(deleteBridge);
+                    createTables.execute(deleteMessages);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != retention)
+            retention.close();
+        try {
+            database.close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
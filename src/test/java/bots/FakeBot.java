@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import messages.BotDocumentMessage;
+import messages.BotTextMessage;
+import org.javatuples.Triplet;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A bot which only records what it is asked to send.
+ */
+public class FakeBot implements Bot {
+    // Triplet<String channelTo, String text, String messageId>, messageId is null for new messages
+    public final BlockingQueue<Triplet<String, String, String>> sent = new LinkedBlockingQueue<>();
+    private final String id;
+    private final int editDelay;
+
+    public FakeBot(String id) {
+        this(id, 0);
+    }
+
+    public FakeBot(String id, int editDelay) {
+        this.id = id;
+        this.editDelay = editDelay;
+    }
+
+    @Override
+    public boolean init(String botId, Map<String, String> configs, String[] channels) {
+        return true;
+    }
+
+    @Override
+    public void setBridges(List<Triplet<Bot, String, String>> bridges) {
+    }
+
+    @Override
+    public int getEditDelay() {
+        return this.editDelay;
+    }
+
+    @Override
+    public Optional<String> sendMessage(BotTextMessage msg, String channelTo) {
+        this.sent.add(Triplet.with(channelTo, msg.getText(), null));
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<String> sendMessage(BotDocumentMessage msg, String channelTo) {
+        return this.sendMessage((BotTextMessage) msg, channelTo);
+    }
+
+    @Override
+    public void editMessage(BotTextMessage msg, String channelTo, String messageId) {
+        this.sent.add(Triplet.with(channelTo, msg.getText(), messageId));
+    }
+
+    @Override
+    public List<String> getUsers(String channel) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String getId() {
+        return this.id;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock moved by the tests only: sleeping records the wait without moving the time.
+ */
+class FakeClock implements TokenBucket.Clock {
+    final List<Long> sleeps = new CopyOnWriteArrayList<>();
+    private volatile long now = TimeUnit.HOURS.toNanos(1);
+
+    void advance(long duration, TimeUnit unit) {
+        this.now += unit.toNanos(duration);
+    }
+
+    @Override
+    public long nanoTime() {
+        return this.now;
+    }
+
+    @Override
+    public void sleep(long nanos) {
+        this.sleeps.add(nanos);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import org.javatuples.Pair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.ResourceBundle;
+
+import static org.junit.Assert.assertEquals;
+
+public class IrcBotTest {
+    private static final ResourceBundle RESOURCES = ResourceBundle.getBundle("resources");
+
+    @Test
+    public void reportsFewChangesOneByOne() {
+        assertEquals(Arrays.asList(
+                Pair.with("alice", "alice joined the channel."),
+                Pair.with("bob", "bob left the channel."),
+                Pair.with("carol", "carol left.")),
+                IrcBot.formatMembership(RESOURCES, 3, "brooklyn", Collections.singletonList("alice"),
+                        Collections.singletonList("bob"), Collections.singletonList("carol")));
+    }
+
+    @Test
+    public void summarizesChangesOverTheThreshold() {
+        assertEquals(Collections.singletonList(
+                Pair.with("brooklyn", "alice, bob joined the channel. carol left the channel. dave left.")),
+                IrcBot.formatMembership(RESOURCES, 3, "brooklyn", Arrays.asList("alice", "bob"),
+                        Collections.singletonList("carol"), Collections.singletonList("dave")));
+    }
+
+    @Test
+    public void countsTheUsersNotListedInASummary() {
+        final List<String> joined = new ArrayList<>();
+        for (int n = 0; n < 12; n++)
+            joined.add("user" + n);
+
+        assertEquals(Collections.singletonList(Pair.with("brooklyn",
+                "user0, user1, user2, user3, user4, user5, user6, user7, user8, user9 and 2 others"
+                        + " joined the channel.")),
+                IrcBot.formatMembership(RESOURCES, 3, "brooklyn", joined, Collections.emptyList(),
+                        Collections.emptyList()));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import org.javatuples.Quartet;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class IrcMembershipBatcherTest {
+    private static final long WINDOW_MILLIS = 100;
+    private static final long TIMEOUT_MILLIS = 5000;
+    // Channel, joined, left, quit
+    private final BlockingQueue<Quartet<String, List<String>, List<String>, List<String>>> changes =
+            new LinkedBlockingQueue<>();
+    private final IrcMembershipBatcher batcher = new IrcMembershipBatcher("test", WINDOW_MILLIS,
+            TimeUnit.MINUTES.toMillis(15), (channel, joined, left, quit) -> changes.add(Quartet.with(channel,
+            joined, left, quit)));
+
+    @After
+    public void close() {
+        this.batcher.close();
+    }
+
+    private Quartet<String, List<String>, List<String>, List<String>> nextChanges() throws InterruptedException {
+        return this.changes.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void reportsTheChangesOfAWindowTogether() throws InterruptedException {
+        this.batcher.join("#brooklyn", "alice");
+        this.batcher.join("#brooklyn", "bob");
+        this.batcher.leave("#brooklyn", "carol");
+        this.batcher.quit("#brooklyn", "dave");
+        this.batcher.join("#other", "alice");
+
+        assertEquals(Quartet.with("#brooklyn", Arrays.asList("alice", "bob"), Collections.singletonList("carol"),
+                Collections.singletonList("dave")), this.nextChanges());
+        assertEquals(Quartet.with("#other", Collections.singletonList("alice"), Collections.emptyList(),
+                Collections.emptyList()), this.nextChanges());
+        assertNull(this.changes.poll(2 * WINDOW_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cancelsAJoinFollowedByALeave() throws InterruptedException {
+        this.batcher.join("#brooklyn", "alice");
+        this.batcher.leave("#brooklyn", "alice");
+        this.batcher.join("#brooklyn", "bob");
+
+        assertEquals(Quartet.with("#brooklyn", Collections.singletonList("bob"), Collections.emptyList(),
+                Collections.emptyList()), this.nextChanges());
+    }
+
+    @Test
+    public void cancelsAJoinFollowedByAQuit() throws InterruptedException {
+        this.batcher.join("#brooklyn", "alice");
+        this.batcher.quit("#brooklyn", "alice");
+        this.batcher.leave("#brooklyn", "bob");
+
+        assertEquals(Quartet.with("#brooklyn", Collections.emptyList(), Collections.singletonList("bob"),
+                Collections.emptyList()), this.nextChanges());
+    }
+
+    @Test
+    public void reportsNothingWhenEveryChangeIsCancelled() throws InterruptedException {
+        this.batcher.join("#brooklyn", "alice");
+        this.batcher.leave("#brooklyn", "alice");
+
+        assertNull(this.changes.poll(3 * WINDOW_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void reportsAJoinInTheNextWindow() throws InterruptedException {
+        this.batcher.join("#brooklyn", "alice");
+        assertEquals(Quartet.with("#brooklyn", Collections.singletonList("alice"), Collections.emptyList(),
+                Collections.emptyList()), this.nextChanges());
+
+        this.batcher.leave("#brooklyn", "alice");
+        assertEquals(Quartet.with("#brooklyn", Collections.emptyList(), Collections.singletonList("alice"),
+                Collections.emptyList()), this.nextChanges());
+    }
+
+    @Test
+    public void suppressesTheJoinsAfterANetsplit() throws InterruptedException {
+        this.batcher.split("alice");
+        this.batcher.join("#brooklyn", "alice");
+        this.batcher.join("#brooklyn", "bob");
+
+        assertEquals(Quartet.with("#brooklyn", Collections.singletonList("bob"), Collections.emptyList(),
+                Collections.emptyList()), this.nextChanges());
+    }
+}
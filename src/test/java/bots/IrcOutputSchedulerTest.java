@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IrcOutputSchedulerTest {
+    private static final String TARGET = "#brooklyn";
+    // 512 - CRLF - "PRIVMSG #brooklyn :" - ":nick!user@host " - "bot"
+    private static final int MAX_PAYLOAD_BYTES = 512 - 2 - 19 - 77 - 3;
+    private final FakeClock clock = new FakeClock();
+
+    private static int utf8Length(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String repeat(char character, int times) {
+        final char[] characters = new char[times];
+        Arrays.fill(characters, character);
+        return new String(characters);
+    }
+
+    /**
+     * Sends the blocks, then waits for them to be written.
+     */
+    private FakeConnection send(Optional<String> multiline, String... blocks) {
+        final FakeConnection connection = new FakeConnection(multiline);
+        final IrcOutputScheduler scheduler = new IrcOutputScheduler(connection, "test",
+                new TokenBucket(1, 1, this.clock));
+        for (String block : blocks)
+            scheduler.send(TARGET, "<alice> ", " [Fake]", block);
+        scheduler.close();
+        return connection;
+    }
+
+    @Test
+    public void neverSplitsACharacter() {
+        assertEquals(Arrays.asList("aaaaaaaaa", "\u00e9"), IrcOutputScheduler.splitUtf8("aaaaaaaaa\u00e9", 10));
+        // A surrogate pair is a single 4 bytes long character
+        assertEquals(Arrays.asList("aaaaaaaa", "\ud83d\ude00"),
+                IrcOutputScheduler.splitUtf8("aaaaaaaa\ud83d\ude00", 10));
+    }
+
+    @Test
+    public void splitsAWordLongerThanTheBudget() {
+        assertEquals(Arrays.asList("xxxxxxxxxx", "xxxxxxxxxx", "xxxxx"),
+                IrcOutputScheduler.splitUtf8(repeat('x', 25), 10));
+    }
+
+    @Test
+    public void splitsAtWhitespace() {
+        assertEquals(Arrays.asList("hello", "world"), IrcOutputScheduler.splitUtf8("hello world", 8));
+        assertEquals(Arrays.asList("hello ", "world"), IrcOutputScheduler.splitUtf8("hello world", 8, true));
+    }
+
+    @Test
+    public void packsShortLines() {
+        assertEquals(Collections.singletonList("a | b | c"), IrcOutputScheduler.pack(Arrays.asList("a", "b", "c"), 20));
+        assertEquals(Arrays.asList("aaaa | bbbb", "cccc"),
+                IrcOutputScheduler.pack(Arrays.asList("aaaa", "bbbb", "cccc"), 11));
+    }
+
+    @Test
+    public void splitsAMultiByteCharacterAtTheProtocolLimit() {
+        final int budget = MAX_PAYLOAD_BYTES - utf8Length("<alice> ") - utf8Length(" [Fake]");
+        final String text = repeat('a', budget - 1) + "\u00e9";
+
+        final List<String> messages = this.send(Optional.empty(), text).messages;
+
+        assertEquals(Arrays.asList("<alice> " + repeat('a', budget - 1) + " [Fake]", "<alice> \u00e9 [Fake]"), messages);
+        for (String message : messages)
+            assertTrue(utf8Length("PRIVMSG " + TARGET + " :" + message) + 2 + 77 + 3 <= 512);
+    }
+
+    @Test
+    public void framesEveryPackedLine() {
+        assertEquals(Collections.singletonList("<alice> hello | world [Fake]"),
+                this.send(Optional.empty(), "hello\nworld").messages);
+    }
+
+    @Test
+    public void tagsTheContinuationsOfASplitLine() {
+        final String longLine = repeat('a', 300) + ' ' + repeat('b', 100);
+
+        final List<String> lines = this.send(Optional.of("max-bytes=4096"), longLine + "\nsecond").rawLines;
+
+        assertEquals(Arrays.asList(
+                "BATCH +1 draft/multiline " + TARGET,
+                "@batch=1 PRIVMSG " + TARGET + " :<alice> " + repeat('a', 300) + ' ',
+                "@batch=1;draft/multiline-concat PRIVMSG " + TARGET + " :" + repeat('b', 100),
+                "@batch=1 PRIVMSG " + TARGET + " :second [Fake]",
+                "BATCH -1"), lines);
+    }
+
+    @Test
+    public void pacesABatchAsASingleLine() {
+        final FakeConnection connection = this.send(Optional.of(""), "one\ntwo\nthree", "four\nfive");
+
+        assertEquals(9, connection.rawLines.size());
+        // The first batch uses the only token, the second one waits for the next
+        assertEquals(Collections.singletonList(TimeUnit.SECONDS.toNanos(1)), this.clock.sleeps);
+    }
+
+    private static final class FakeConnection implements IrcOutputScheduler.Connection {
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+        private final List<String> rawLines = new CopyOnWriteArrayList<>();
+        private final Optional<String> multiline;
+
+        private FakeConnection(Optional<String> multiline) {
+            this.multiline = multiline;
+        }
+
+        @Override
+        public String getNick() {
+            return "bot";
+        }
+
+        @Override
+        public Optional<String> getMultiline() {
+            return this.multiline;
+        }
+
+        @Override
+        public void sendMessage(String target, String message) {
+            assertEquals(TARGET, target);
+            this.messages.add(message);
+        }
+
+        @Override
+        public void sendRawLine(String line) {
+            this.rawLines.add(line);
+        }
+    }
+}
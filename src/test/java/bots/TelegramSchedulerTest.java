@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TelegramSchedulerTest {
+    private static final long RETRY_AFTER_SECONDS = 10;
+    private final FakeClock clock = new FakeClock();
+    // 30 messages per second, 20 per minute in each chat
+    private final TelegramScheduler scheduler = new TelegramScheduler(30, 20, this.clock);
+
+    private static TelegramApiRequestException error(int code, String parameters) {
+        return new TelegramApiRequestException("Error sending the message", new JSONObject(String.format(
+                "{\"ok\":false,\"error_code\":%d,\"description\":\"Error\"%s}", code, parameters)));
+    }
+
+    private static TelegramApiRequestException tooManyRequests() {
+        return error(429, String.format(",\"parameters\":{\"retry_after\":%d}", RETRY_AFTER_SECONDS));
+    }
+
+    @Test
+    public void retriesAfterTheDelayAskedByTelegram() throws TelegramApiException {
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final String result = this.scheduler.execute("1", () -> {
+            if (1 == attempts.incrementAndGet())
+                throw tooManyRequests();
+            return "sent";
+        });
+
+        assertEquals("sent", result);
+        assertEquals(2, attempts.get());
+        // Both the chat and the global limit wait for the delay
+        assertEquals(Arrays.asList(TimeUnit.SECONDS.toNanos(RETRY_AFTER_SECONDS),
+                TimeUnit.SECONDS.toNanos(RETRY_AFTER_SECONDS)), this.clock.sleeps);
+    }
+
+    @Test
+    public void pausesTheOtherChatsToo() throws TelegramApiException {
+        final AtomicInteger attempts = new AtomicInteger();
+        this.scheduler.execute("1", () -> {
+            if (1 == attempts.incrementAndGet())
+                throw tooManyRequests();
+            return null;
+        });
+        this.clock.sleeps.clear();
+
+        this.scheduler.execute("2", () -> null);
+
+        assertEquals(1, this.clock.sleeps.size());
+        assertEquals(TimeUnit.SECONDS.toNanos(RETRY_AFTER_SECONDS), (long) this.clock.sleeps.get(0));
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttempt() {
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            this.scheduler.execute("1", () -> {
+                attempts.incrementAndGet();
+                throw tooManyRequests();
+            });
+            fail();
+        } catch (TelegramApiException e) {
+            assertEquals(5, attempts.get());
+        }
+    }
+
+    @Test
+    public void doesNotRetryOtherErrors() {
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            this.scheduler.execute("1", () -> {
+                attempts.incrementAndGet();
+                throw error(400, "");
+            });
+            fail();
+        } catch (TelegramApiException e) {
+            assertEquals(1, attempts.get());
+            assertEquals(0, this.clock.sleeps.size());
+        }
+    }
+
+    @Test
+    public void dropsTheBucketsOfIdleChats() throws TelegramApiException {
+        this.scheduler.execute("1", () -> null);
+        this.scheduler.execute("2", () -> null);
+        assertEquals(2, this.scheduler.getChatCount());
+
+        // Chat 2 is written to again just before the sweep, its bucket isn't full yet
+        this.clock.advance(2, TimeUnit.MINUTES);
+        this.scheduler.execute("2", () -> null);
+        assertEquals(1, this.scheduler.getChatCount());
+    }
+
+    @Test
+    public void keepsTheBucketsInUse() throws TelegramApiException {
+        this.scheduler.execute("1", () -> {
+            this.clock.advance(2, TimeUnit.MINUTES);
+            // Chat 1 is still sending when chat 2 triggers the sweep
+            this.scheduler.execute("2", () -> null);
+            assertEquals(2, this.scheduler.getChatCount());
+            return null;
+        });
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TelegramWebhookServerTest {
+    private static final String PATH = "/telegram/bot";
+    private static final String REFUSED_PATH = "/telegram/refused";
+    private static final String UPDATE = "{\"update_id\":1,\"message\":{\"message_id\":5,\"date\":1,"
+            + "\"chat\":{\"id\":-42,\"type\":\"group\",\"title\":\"group\"},"
+            + "\"from\":{\"id\":7,\"first_name\":\"Alice\",\"username\":\"alice\"},\"text\":\"hi\"}}";
+    private final BlockingQueue<Update> updates = new LinkedBlockingQueue<>();
+    private int port;
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Before
+    public void register() throws IOException {
+        this.port = freePort();
+        TelegramWebhookServer.register(this.port, PATH, this.updates::add);
+        TelegramWebhookServer.register(this.port, REFUSED_PATH, update -> {
+            throw new RejectedExecutionException();
+        });
+    }
+
+    @After
+    public void unregister() {
+        TelegramWebhookServer.unregister(this.port, PATH);
+        TelegramWebhookServer.unregister(this.port, REFUSED_PATH);
+    }
+
+    private HttpURLConnection post(String path, String body) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                String.format("http://localhost:%d%s", this.port, path)).openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    @Test
+    public void dispatchesAPostedUpdate() throws Exception {
+        assertEquals(200, this.post(PATH, UPDATE).getResponseCode());
+
+        final Update update = this.updates.poll(5, TimeUnit.SECONDS);
+        assertNotNull(update);
+        assertEquals("hi", update.getMessage().getText());
+        assertEquals(Long.valueOf(-42), update.getMessage().getChatId());
+    }
+
+    @Test
+    public void refusesAnythingButPost() throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                String.format("http://localhost:%d%s", this.port, PATH)).openConnection();
+
+        assertEquals(405, connection.getResponseCode());
+        assertNull(this.updates.poll());
+    }
+
+    @Test
+    public void refusesAnInvalidUpdate() throws Exception {
+        assertEquals(400, this.post(PATH, "{").getResponseCode());
+        assertNull(this.updates.poll());
+    }
+
+    @Test
+    public void asksForARetryWhenTheUpdateCannotBeQueued() throws Exception {
+        assertEquals(503, this.post(REFUSED_PATH, UPDATE).getResponseCode());
+    }
+}
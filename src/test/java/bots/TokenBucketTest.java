@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bots;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    private final FakeClock clock = new FakeClock();
+    // 3 tokens, one more every 500 ms
+    private final TokenBucket bucket = new TokenBucket(3, 2, this.clock);
+
+    @Test
+    public void servesABurstThenOneTokenPerInterval() {
+        assertEquals(0, this.bucket.reserve());
+        assertEquals(0, this.bucket.reserve());
+        assertEquals(0, this.bucket.reserve());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), this.bucket.reserve());
+        // Each reservation waits behind the ones before it
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), this.bucket.reserve());
+    }
+
+    @Test
+    public void refillsUpToItsCapacity() {
+        for (int n = 0; n < 3; n++)
+            this.bucket.reserve();
+
+        this.clock.advance(1, TimeUnit.HOURS);
+        for (int n = 0; n < 3; n++)
+            assertEquals(0, this.bucket.reserve());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), this.bucket.reserve());
+    }
+
+    @Test
+    public void waitsUntilTheEndOfAPause() {
+        this.bucket.pause(10, TimeUnit.SECONDS);
+        assertEquals(TimeUnit.SECONDS.toNanos(10), this.bucket.reserve());
+
+        // The tokens left before the pause are gone, the ones refilled during it are not
+        this.clock.advance(10, TimeUnit.SECONDS);
+        assertEquals(0, this.bucket.reserve());
+    }
+
+    @Test
+    public void keepsTheLongestPause() {
+        this.bucket.pause(10, TimeUnit.SECONDS);
+        this.bucket.pause(1, TimeUnit.SECONDS);
+
+        assertEquals(TimeUnit.SECONDS.toNanos(10), this.bucket.reserve());
+    }
+
+    @Test
+    public void isIdleOnlyWhenFullAndNotPaused() {
+        assertTrue(this.bucket.isIdle());
+
+        this.bucket.reserve();
+        assertFalse(this.bucket.isIdle());
+        this.clock.advance(500, TimeUnit.MILLISECONDS);
+        assertTrue(this.bucket.isIdle());
+
+        this.bucket.pause(1, TimeUnit.SECONDS);
+        this.clock.advance(999, TimeUnit.MILLISECONDS);
+        assertFalse(this.bucket.isIdle());
+        this.clock.advance(2, TimeUnit.SECONDS);
+        assertTrue(this.bucket.isIdle());
+    }
+
+    @Test
+    public void acquireSleepsForTheWait() throws InterruptedException {
+        for (int n = 0; n < 4; n++)
+            this.bucket.acquire();
+
+        assertEquals(1, this.clock.sleeps.size());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), (long) this.clock.sleeps.get(0));
+    }
+}
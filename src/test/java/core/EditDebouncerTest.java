@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import bots.FakeBot;
+import messages.BotMessage;
+import messages.BotTextMessage;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EditDebouncerTest {
+    private static final int EDIT_DELAY = 100;
+    // Longer than any test, the edits are only delivered when flushed
+    private static final int HELD_EDIT_DELAY = 60000;
+    private static final long TIMEOUT_SECONDS = 5;
+    private final FakeBot source = new FakeBot("source");
+    private final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+
+    @After
+    public void flush() {
+        EditDebouncer.flush();
+    }
+
+    private void submit(Destination destination, String messageKey, String text) {
+        EditDebouncer.submit(destination, messageKey,
+                new BotTextMessage(new BotMessage("alice", "#brooklyn", this.source), text),
+                edit -> this.delivered.add(destination.getChannel() + ' ' + edit.getText()));
+    }
+
+    @Test
+    public void deliversRightAwayWithoutDelay() {
+        final Destination destination = new Destination(new FakeBot("irc"), "#brooklyn");
+        this.submit(destination, "1", "first");
+        this.submit(destination, "1", "second");
+
+        assertEquals("#brooklyn first", this.delivered.poll());
+        assertEquals("#brooklyn second", this.delivered.poll());
+    }
+
+    @Test
+    public void deliversOnlyTheLastEditOfAWindow() throws InterruptedException {
+        final Destination destination = new Destination(new FakeBot("telegram", EDIT_DELAY), "-42");
+        this.submit(destination, "1", "first");
+        this.submit(destination, "1", "second");
+        this.submit(destination, "1", "third");
+
+        assertEquals("-42 third", this.delivered.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(this.delivered.poll(3 * EDIT_DELAY, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void holdsTheEditsOfEachMessageApart() throws InterruptedException {
+        final Destination destination = new Destination(new FakeBot("telegram", HELD_EDIT_DELAY), "-42");
+        final Destination other = new Destination(new FakeBot("telegram", HELD_EDIT_DELAY), "-43");
+        this.submit(destination, "1", "first");
+        this.submit(destination, "2", "second");
+        this.submit(other, "1", "third");
+
+        EditDebouncer.flush();
+        assertEquals(3, this.delivered.size());
+    }
+
+    @Test
+    public void flushesOnlyTheEditsOfABot() {
+        final FakeBot telegram = new FakeBot("telegram", HELD_EDIT_DELAY);
+        final Destination destination = new Destination(telegram, "-42");
+        final Destination other = new Destination(new FakeBot("rocketchat", HELD_EDIT_DELAY), "general");
+        this.submit(destination, "1", "first");
+        this.submit(other, "1", "second");
+        this.submit(destination, "1", "third");
+
+        EditDebouncer.flush(telegram);
+        assertEquals("-42 third", this.delivered.poll());
+        assertNull(this.delivered.poll());
+
+        EditDebouncer.flush();
+        assertEquals("general second", this.delivered.poll());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import bots.FakeBot;
+import messages.BotMessage;
+
+import java.lang.management.ManagementFactory;
+import java.util.Optional;
+
+/**
+ * Compares MessageTemplate with the String.format based formatter it replaced.
+ * It's not run by the tests, run its main method with the test classpath, e.g.
+ * {@code mvn test-compile exec:java -Dexec.mainClass=core.MessageTemplateBenchmark -Dexec.classpathScope=test}.
+ */
+public final class MessageTemplateBenchmark {
+    private static final int WARMUP_ITERATIONS = 2_000_000;
+    private static final int ITERATIONS = 5_000_000;
+    private static final int ROUNDS = 5;
+
+    private MessageTemplateBenchmark() {
+    }
+
+    /**
+     * The formatter used before MessageTemplate.
+     */
+    private static String formatWithStringFormat(BotMessage msg, Optional<String> text) {
+        final String botClassName = msg.getBotFrom().getClass().getSimpleName();
+        final String channelType = botClassName.substring(0, botClassName.length() - "Bot".length());
+
+        return text.map(s -> String.format("%s (%s): %s", msg.getNicknameFrom(), channelType, s))
+                .orElseGet(() -> String.format("%s (%s)", msg.getNicknameFrom(), channelType));
+    }
+
+    private static long run(String name, int iterations, Runnable formatting) {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+
+        final long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        final long cpuBefore = threads.getCurrentThreadCpuTime();
+        final long start = System.nanoTime();
+        for (int n = 0; n < iterations; n++)
+            formatting.run();
+        final long elapsed = System.nanoTime() - start;
+        final long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        final long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        if (null != name)
+            System.out.println(String.format("%-16s %7.1f ns/msg %7.1f cpu ns/msg %7.1f bytes/msg",
+                    name, (double) elapsed / iterations, (double) cpu / iterations, (double) allocated / iterations));
+        return elapsed;
+    }
+
+    public static void main(String[] args) {
+        final BotMessage msg = new BotMessage("alice", "#brooklyn", new FakeBot("benchmark"));
+        final Optional<String> text = Optional.of("Hello everyone, the bridge is up again");
+        final MessageTemplate template = MessageTemplate.compile(MessageTemplate.DEFAULT_FORMAT);
+        final int[] sink = new int[1];
+
+        final Runnable stringFormat = () -> sink[0] += formatWithStringFormat(msg, text).length();
+        final Runnable messageTemplate = () -> sink[0] += template.format(msg, text).length();
+        if (!formatWithStringFormat(msg, text).equals(template.format(msg, text)))
+            throw new IllegalStateException("The formatters don't agree");
+
+        run(null, WARMUP_ITERATIONS, stringFormat);
+        run(null, WARMUP_ITERATIONS, messageTemplate);
+        for (int round = 1; round <= ROUNDS; round++) {
+            System.out.println(String.format("Round %d", round));
+            run("String.format", ITERATIONS, stringFormat);
+            run("MessageTemplate", ITERATIONS, messageTemplate);
+        }
+
+        // Keeps the results alive, so the formatting isn't optimised away
+        System.out.println(String.format("(%d)", sink[0]));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import bots.FakeBot;
+import messages.BotMessage;
+import org.javatuples.Pair;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageTemplateTest {
+    private final BotMessage msg = new BotMessage("alice", "#brooklyn", new FakeBot("irc"));
+
+    @Test
+    public void formatsTheDefaultTemplate() {
+        final MessageTemplate template = MessageTemplate.compile(MessageTemplate.DEFAULT_FORMAT);
+
+        assertEquals("alice (Fake): hi", template.format(this.msg, Optional.of("hi")));
+        assertEquals("alice (Fake)", template.format(this.msg, Optional.empty()));
+    }
+
+    @Test
+    public void formatsATemplateWithTheTextFirst() {
+        final MessageTemplate template = MessageTemplate.compile("{text} \u2014 {nickname} in {channel}");
+
+        assertEquals("hi \u2014 alice in #brooklyn", template.format(this.msg, Optional.of("hi")));
+    }
+
+    @Test
+    public void splitsTheTemplateAroundTheText() {
+        assertEquals(Pair.with("alice (Fake): ", ""),
+                MessageTemplate.compile(MessageTemplate.DEFAULT_FORMAT).formatAround(this.msg));
+        assertEquals(Pair.with("", " \u2014 alice"),
+                MessageTemplate.compile("{text} \u2014 {nickname}").formatAround(this.msg));
+        assertEquals(Pair.with("<alice> ", " [Fake]"),
+                MessageTemplate.compile("<{nickname}> {text} [{type}]").formatAround(this.msg));
+    }
+
+    @Test
+    public void putsTheTextAfterATemplateWithoutIt() {
+        assertEquals(Pair.with("alice: ", ""), MessageTemplate.compile("{nickname}: ").formatAround(this.msg));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package core;
+
+import bots.Bot;
+import bots.FakeBot;
+import messages.BotMessage;
+import messages.BotTextMessage;
+import org.javatuples.Triplet;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RoutingTableTest {
+    private final FakeBot irc = new FakeBot("irc");
+    private final FakeBot telegram = new FakeBot("telegram");
+    private final Destination ircChannel = new Destination(this.irc, "#brooklyn");
+    private final Destination telegramChat = new Destination(this.telegram, "-42");
+
+    @After
+    public void closeQueues() {
+        BotsController.closeOutboundQueues();
+    }
+
+    @Test
+    public void routesEachChannelToItsDestinations() {
+        final RoutingTable table = RoutingTable.EMPTY
+                .with("#brooklyn", this.telegramChat)
+                .with("-42", this.ircChannel);
+
+        assertArrayEquals(new Destination[]{this.telegramChat}, table.get("#brooklyn"));
+        assertArrayEquals(new Destination[]{this.ircChannel}, table.get("-42"));
+        assertEquals(0, table.get("#other").length);
+    }
+
+    @Test
+    public void leavesTheTableItComesFromUnchanged() {
+        final RoutingTable table = RoutingTable.EMPTY.with("#brooklyn", this.telegramChat);
+        table.with("#brooklyn", new Destination(this.telegram, "-43"));
+
+        assertArrayEquals(new Destination[]{this.telegramChat}, table.get("#brooklyn"));
+        assertEquals(0, RoutingTable.EMPTY.get("#brooklyn").length);
+    }
+
+    @Test
+    public void sendsToEveryChannelOnlyOnceEach() {
+        final Destination otherChat = new Destination(this.telegram, "-43");
+        final RoutingTable table = RoutingTable.EMPTY
+                .with("#brooklyn", this.telegramChat)
+                .with("#brooklyn", otherChat)
+                // The same destination bridged from another channel
+                .with("#other", new Destination(this.telegram, "-42"));
+
+        assertArrayEquals(new Destination[]{this.telegramChat, otherChat}, table.get(BotsController.EVERY_CHANNEL));
+    }
+
+    @Test
+    public void getsTheChannelsBridgedToASingleChannel() {
+        final RoutingTable table = RoutingTable.EMPTY
+                .with("#brooklyn", this.telegramChat)
+                .with("#other", new Destination(this.telegram, "-43"));
+
+        assertArrayEquals(new Destination[]{this.telegramChat}, table.getBridged("#brooklyn"));
+        // Unlike get, no channel is bridged to every channel
+        assertEquals(0, table.getBridged(BotsController.EVERY_CHANNEL).length);
+    }
+
+    @Test
+    public void stopsSendingToARemovedBridge() throws InterruptedException {
+        final BotsController controller = new BotsController();
+        controller.setBridges(Arrays.asList(
+                Triplet.with((Bot) this.telegram, "-42", "#brooklyn"),
+                Triplet.with((Bot) this.telegram, "-43", "#brooklyn")));
+        controller.setBridges(Collections.singletonList(Triplet.with((Bot) this.telegram, "-43", "#brooklyn")));
+
+        controller.sendMessage(new BotTextMessage(new BotMessage("alice", "#brooklyn", this.irc), "hi"),
+                "#brooklyn", Optional.empty());
+
+        assertEquals(Triplet.with("-43", "hi", null), this.telegram.sent.poll(5, TimeUnit.SECONDS));
+        BotsController.closeOutboundQueues();
+        assertNull(this.telegram.sent.poll());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import org.javatuples.Triplet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MappedMessageStoreTest {
+    // Small enough to be compacted after a few messages
+    private static final int CAPACITY = 1024;
+    // Magic and version
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    // Length and CRC32
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private Path path;
+
+    private static Triplet<String, String, String> from(int n) {
+        return Triplet.with("ircbot", "#channel", "message-" + n);
+    }
+
+    private static void save(MessageStore store, int n) {
+        store.save(from(n), Collections.singletonList(Triplet.with("telegrambot", "-100", "copy-" + n)));
+    }
+
+    private static Optional<String> getCopy(MessageStore store, int n) {
+        return store.getChildMessage(from(n), "telegrambot", "-100");
+    }
+
+    /**
+     * @return the offset of the record number n of the log
+     */
+    private static int getRecordOffset(Path path, int n) throws IOException {
+        final ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(path));
+        int offset = HEADER_SIZE;
+        for (int record = 0; record < n; record++)
+            offset += RECORD_HEADER_SIZE + log.getInt(offset);
+        return offset;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        this.path = this.folder.getRoot().toPath().resolve("messages.log");
+    }
+
+    private MappedMessageStore open() throws IOException {
+        return new MappedMessageStore(this.path, 0, CAPACITY);
+    }
+
+    @Test
+    public void recoversTheRecordsBeforeATruncatedTail() throws IOException {
+        try (MappedMessageStore store = this.open()) {
+            for (int n = 0; n < 3; n++)
+                save(store, n);
+        }
+
+        // A crash in the middle of the last record
+        final int lastRecord = getRecordOffset(this.path, 2);
+        try (FileChannel log = FileChannel.open(this.path, StandardOpenOption.WRITE)) {
+            log.truncate(lastRecord + RECORD_HEADER_SIZE + 3);
+        }
+
+        try (MappedMessageStore store = this.open()) {
+            assertEquals(Optional.of("copy-0"), getCopy(store, 0));
+            assertEquals(Optional.of("copy-1"), getCopy(store, 1));
+            assertFalse(getCopy(store, 2).isPresent());
+
+            save(store, 3);
+        }
+
+        try (MappedMessageStore store = this.open()) {
+            assertEquals(Optional.of("copy-1"), getCopy(store, 1));
+            assertEquals(Optional.of("copy-3"), getCopy(store, 3));
+        }
+    }
+
+    @Test
+    public void discardsARecordWithAWrongChecksumAndWhatFollows() throws IOException {
+        try (MappedMessageStore store = this.open()) {
+            for (int n = 0; n < 3; n++)
+                save(store, n);
+        }
+
+        final int secondRecord = getRecordOffset(this.path, 1);
+        try (FileChannel log = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer payloadByte = ByteBuffer.allocate(1);
+            log.read(payloadByte, secondRecord + RECORD_HEADER_SIZE + 10);
+            payloadByte.put(0, (byte) (payloadByte.get(0) ^ 0xFF)).rewind();
+            log.write(payloadByte, secondRecord + RECORD_HEADER_SIZE + 10);
+        }
+
+        try (MappedMessageStore store = this.open()) {
+            assertEquals(Optional.of("copy-0"), getCopy(store, 0));
+            assertFalse(getCopy(store, 1).isPresent());
+            assertFalse(getCopy(store, 2).isPresent());
+
+            save(store, 4);
+        }
+
+        // The damaged tail has been wiped, so the records written after it are found
+        try (MappedMessageStore store = this.open()) {
+            assertEquals(Optional.of("copy-0"), getCopy(store, 0));
+            assertEquals(Optional.of("copy-4"), getCopy(store, 4));
+        }
+    }
+
+    @Test
+    public void reopensAfterCompaction() throws IOException {
+        final int messages = 100;
+        try (MappedMessageStore store = this.open()) {
+            for (int n = 0; n < messages; n++)
+                save(store, n);
+            // Appended to an existing message, so the log holds two records of it
+            store.save(from(0), Collections.singletonList(Triplet.with("rocketbot", "room", "other-copy")));
+        }
+
+        assertFalse(Files.exists(this.path.resolveSibling("messages.log.compact")));
+        try (MappedMessageStore store = this.open()) {
+            for (int n = 0; n < messages; n++)
+                assertEquals(Optional.of("copy-" + n), getCopy(store, n));
+            assertEquals(Optional.of("other-copy"), store.getChildMessage(from(0), "rocketbot", "room"));
+        }
+    }
+}
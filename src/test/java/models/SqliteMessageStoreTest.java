@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Davide Riva driva95@protonmail.com
+ *
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import org.javatuples.Triplet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+
+public class SqliteMessageStoreTest {
+    // The schema of the versions before user_version was set
+    private static final String[] BASELINE_SCHEMA = {
+            "CREATE TABLE messages (\n"
+                    + "	id integer PRIMARY KEY AUTOINCREMENT,\n"
+                    + "	bot varchar(255) NOT NULL,\n"
+                    + "	channel varchar(255) NOT NULL,\n"
+                    + "	message varchar(36) NOT NULL,\n"
+                    + " CONSTRAINT UC_message UNIQUE (bot,channel,message)"
+                    + ");",
+            "CREATE TABLE bridge (\n"
+                    + "fromId integer REFERENCES messages(id) ON DELETE CASCADE,\n"
+                    + "toId integer REFERENCES messages(id) ON DELETE CASCADE,\n"
+                    + "PRIMARY KEY(fromId, toId)"
+                    + ");",
+            "INSERT INTO messages(id,bot,channel,message) VALUES(1,'tbot','-42','5');",
+            "INSERT INTO messages(id,bot,channel,message) VALUES(2,'ibot','#brooklyn','a1b2');",
+            "INSERT INTO messages(id,bot,channel,message) VALUES(3,'rbot','general','xyz');",
+            "INSERT INTO bridge(fromId,toId) VALUES(1,2);",
+            "INSERT INTO bridge(fromId,toId) VALUES(1,3);",
+            // Left by the old versions when a copy couldn't be saved
+            "INSERT INTO bridge(fromId,toId) VALUES(1,NULL);"
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static int queryInt(Connection connection, String query) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(query)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    public void migratesTheBaselineSchema() throws Exception {
+        final String uri = "jdbc:sqlite:" + this.folder.getRoot().toPath().resolve("brooklyn.db");
+        try (Connection connection = DriverManager.getConnection(uri);
+             Statement statement = connection.createStatement()) {
+            for (String sql : BASELINE_SCHEMA)
+                statement.execute(sql);
+        }
+
+        try (SqliteMessageStore store = new SqliteMessageStore(new Database(uri, 2), 0)) {
+            final Triplet<String, String, String> from = Triplet.with("tbot", "-42", "5");
+            assertEquals(Optional.of("a1b2"), store.getChildMessage(from, "ibot", "#brooklyn"));
+            assertEquals(Optional.of("xyz"), store.getChildMessage(from, "rbot", "general"));
+            assertEquals(Optional.empty(), store.getChildMessage(from, "ibot", "#other"));
+        }
+
+        try (Connection connection = DriverManager.getConnection(uri)) {
+            assertEquals(3, queryInt(connection, "PRAGMA user_version;"));
+            // 2 is INCREMENTAL
+            assertEquals(2, queryInt(connection, "PRAGMA auto_vacuum;"));
+            assertEquals(2, queryInt(connection, "SELECT count(*) FROM bridge;"));
+            assertEquals(0, queryInt(connection,
+                    "SELECT count(*) FROM sqlite_master WHERE name IN ('messages_old', 'bridge_old');"));
+        }
+    }
+
+    @Test
+    public void keepsTheMappingsWhenReopened() throws Exception {
+        final String uri = "jdbc:sqlite:" + this.folder.getRoot().toPath().resolve("brooklyn.db");
+        final Triplet<String, String, String> from = Triplet.with("tbot", "-42", "5");
+        try (SqliteMessageStore store = new SqliteMessageStore(new Database(uri, 2), 0)) {
+            store.save(from, Collections.singletonList(Triplet.with("ibot", "#brooklyn", "a1b2")));
+        }
+
+        try (SqliteMessageStore store = new SqliteMessageStore(new Database(uri, 2), 0)) {
+            assertEquals(Optional.of("a1b2"), store.getChildMessage(from, "ibot", "#brooklyn"));
+        }
+    }
+}